@@ -1,34 +1,152 @@
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.DefaultByteBufHolder;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.MessageToByteEncoder;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import openrs.Cache;
 import openrs.FileStore;
+import openrs.util.FileChannelUtils;
+import openrs.util.crypto.RsaPrivateKey;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
 import java.math.BigInteger;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
 
 public final class OS117 {
   private static final BigInteger RSA_EXPONENT = new BigInteger("83417783738053606360795816602207191953304846609474320732476402573404186036614343850219601956066771360994386107416321866148159473079678674374687720403874067122985493106284338371079659182148666792926231395427671452828855023970154106448655638043362091362460709669211465368060966770299219318096643511694237100033");
   private static final BigInteger RSA_MODULUS = new BigInteger("121003791342204940240537304839726709584854797083778631205053253551420764503798013565999160101698716128496880972150143562234438410518435176682025434530958294184215641031116771799085452294014522776026755330783113184826800458685453310933046761189248084972780538551751693199624598021907224405154591177378433674409");
+  private static final BigInteger RSA_PUBLIC_EXPONENT = BigInteger.valueOf(65537);
+  private static final RsaPrivateKey RSA_KEY = RsaPrivateKey.create(RSA_MODULUS, RSA_PUBLIC_EXPONENT, RSA_EXPONENT);
+
+  /*
+   * The login response sent when too many logins are already waiting for
+   * their RSA block to be decrypted. The client tells the player the world
+   * is full and retries later.
+   */
+  private static final int LOGIN_SERVER_BUSY = 7;
 
   private static Cache cache;
   private static ByteBuffer checksumTable;
+  private static ResponseCache responses;
+  private static Js5Scheduler scheduler;
+  private static Executor ioExecutor;
+  private static Executor rsaExecutor;
+  private static final LatencyMetric rsaLatency = new LatencyMetric();
+  private static FramedStore framedResponses;
   private static ServerChannel channel;
 
   public static void main(String[] args) throws Exception {
     cache = new Cache(FileStore.open("cache/"));
-    checksumTable = cache.createChecksumTable().encode();
+    if (Boolean.getBoolean("openrs.verify")) {
+      for (Cache.Mismatch mismatch : cache.verify()) {
+        System.err.println("cache mismatch: " + mismatch);
+      }
+    }
+    checksumTable = cache.getEncodedChecksumTable();
+    responses = new ResponseCache(cache, Long.getLong("openrs.js5.responses.capacity", 64 * 1024 * 1024));
+    ioExecutor = Executors.newFixedThreadPool(Integer.getInteger("openrs.js5.io.threads", 4), new DefaultThreadFactory("js5-io", true));
+    scheduler = new Js5Scheduler(Long.getLong("openrs.js5.rate.total", 0), Long.getLong("openrs.js5.rate.client", 0));
+    if (Boolean.getBoolean("openrs.sendfile")) {
+      framedResponses = new FramedStore(cache, checksumTable, new File("cache/"));
+    }
+    cache.addListener(OS117::fileWritten);
+    rsaExecutor = createRsaExecutor();
     channel = new ServerChannel();
+
+    long statusInterval = Long.getLong("openrs.status.interval", 60);
+    if (statusInterval > 0) {
+      ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("status", true));
+      executor.scheduleAtFixedRate(OS117::logStatus, statusInterval, statusInterval, TimeUnit.SECONDS);
+    }
+  }
+
+  /*
+   * Drops the cached responses of a file or reference table written while
+   * the server is running, so clients are not sent the old data under the
+   * new checksum table.
+   */
+  private static void fileWritten(int type, int file) {
+    responses.invalidate(type, file);
+    if (framedResponses != null) {
+      framedResponses.invalidate(type, file);
+    }
+  }
+
+  /*
+   * Logs the state of the server, every openrs.status.interval (60) seconds
+   * or never if it is 0.
+   */
+  private static void logStatus() {
+    int queued = 0;
+    int deepest = 0;
+    SocketAddress deepestAddress = null;
+    Map<SocketAddress, Integer> depths = scheduler.getQueueDepths();
+    for (Map.Entry<SocketAddress, Integer> depth : depths.entrySet()) {
+      queued += depth.getValue();
+      if (depth.getValue() > deepest) {
+        deepest = depth.getValue();
+        deepestAddress = depth.getKey();
+      }
+    }
+
+    System.out.println("js5: " + depths.size() + " connections, " + queued + " queued requests"
+        + (deepestAddress == null ? "" : ", deepest queue " + deepest + " (" + deepestAddress + ")"));
+    System.out.println("rsa: " + rsaLatency.getCount() + " logins decrypted, mean " + TimeUnit.NANOSECONDS.toMicros(rsaLatency.getMeanNanos())
+        + " us, max " + TimeUnit.NANOSECONDS.toMicros(rsaLatency.getMaxNanos()) + " us");
+  }
+
+  /*
+   * Creates the pool on which login RSA blocks are decrypted. Its size is
+   * read from openrs.rsa.threads (the number of cores), and at most
+   * openrs.rsa.queue (64) logins wait for a thread before further logins are
+   * rejected with LOGIN_SERVER_BUSY.
+   */
+  private static Executor createRsaExecutor() {
+    int threads = Integer.getInteger("openrs.rsa.threads", Runtime.getRuntime().availableProcessors());
+    int queue = Integer.getInteger("openrs.rsa.queue", 64);
+
+    return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queue),
+        new DefaultThreadFactory("rsa", true), new ThreadPoolExecutor.AbortPolicy());
   }
 
   private static class Initializer extends ChannelInitializer<SocketChannel> {
@@ -60,7 +178,13 @@ public final class OS117 {
                 int revision = in.readInt();
                 if (revision == 117) {
                   ctx.writeAndFlush(ctx.alloc().buffer(1).writeByte(0), ctx.voidPromise());
-                  sequence = Sequence.ONDEMAND;
+
+                  /* any requests already received are passed on to the new decoder */
+                  ChannelPipeline pipeline = ctx.pipeline();
+                  pipeline.addLast("js5-encoder", new Js5ResponseEncoder());
+                  pipeline.addLast("js5-handler", new Js5Handler());
+                  pipeline.replace(this, "js5-decoder", new Js5RequestDecoder());
+                  return;
                 } else {
                   ctx.writeAndFlush(ctx.alloc().buffer(1).writeByte(6)).addListener(ChannelFutureListener.CLOSE);
                 }
@@ -71,281 +195,1018 @@ public final class OS117 {
 
           break;
 
-        case ONDEMAND:
-          if (in.readableBytes() >= 4) {
-            int connectionType = in.readUnsignedByte();
-            switch (connectionType) {
-              case 0:
-              case 1:
-                int cacheId = in.readUnsignedByte();
-                int fileId = in.readUnsignedShort();
+        case LOGIN:
+          switch (stage) {
+            case HEADER:
+              if (in.readableBytes() >= 3) {
+                int connectionType = in.readUnsignedByte();
+                payloadSize = in.readUnsignedShort();
 
-                ByteBuf response = ctx.alloc().buffer();
+                stage = Stage.PAYLOAD;
+              }
+              break;
+            case PAYLOAD:
+              if (in.readableBytes() >= payloadSize) {
+                ByteBuf payload = in.readBytes(payloadSize);
+
+                int clientRev = payload.readInt();
+                int rsaBlockSize = payload.readUnsignedShort();
+
+                byte[] rsaBlock = new byte[rsaBlockSize];
+                payload.readBytes(rsaBlock);
+
+                /*
+                 * The RSA block is decrypted on the rsa executor, as modPow takes long enough to
+                 * stall every other connection on this event loop. Input is not decoded until the
+                 * login has been completed back on the event loop.
+                 */
+                stage = Stage.DECRYPT;
+
+                long submitted = System.nanoTime();
+                try {
+                  rsaExecutor.execute(() -> {
+                    ByteBuf rsaBuffer;
+                    try {
+                      rsaBuffer = Unpooled.wrappedBuffer(crypt(rsaBlock));
+                    } catch (Throwable t) {
+                      payload.release();
+                      ctx.executor().execute(() -> ctx.fireExceptionCaught(t).close());
+                      return;
+                    } finally {
+                      rsaLatency.record(System.nanoTime() - submitted);
+                    }
 
-                response.writeByte(cacheId);
-                response.writeShort(fileId);
+                    ctx.executor().execute(() -> {
+                      try {
+                        login(ctx, payload, rsaBuffer);
+                        sequence = Sequence.GAME;
+                      } catch (Exception e) {
+                        ctx.fireExceptionCaught(e).close();
+                      } finally {
+                        payload.release();
+                      }
+                    });
+                  });
+                } catch (RejectedExecutionException e) {
+                  payload.release();
+                  ctx.writeAndFlush(ctx.alloc().buffer(1).writeByte(LOGIN_SERVER_BUSY)).addListener(ChannelFutureListener.CLOSE);
+                }
+              }
 
-                if (cacheId == 0xFF && fileId == 0xFF) {
-                  ByteBuffer checksums = checksumTable.duplicate();
+              break;
+            case DECRYPT:
+              break;
+          }
 
-                  response.writeByte(0);
-                  response.writeInt(checksums.limit());
-                  response.writeBytes(checksums);
-                } else {
-                  ByteBuffer file = cache.getStore().read(cacheId, fileId);
+          break;
+        case GAME:
+          in.skipBytes(in.readableBytes()); // game packets are not handled yet
 
-                  int compression = file.get() & 0xFF;
-                  int length = file.getInt();
+          break;
+      }
+    }
 
-                  response.writeByte(compression);
-                  response.writeInt(length);
+    private void login(ChannelHandlerContext ctx, ByteBuf in, ByteBuf rsaBuffer) throws Exception {
+      int rsaHeaderId = rsaBuffer.readUnsignedByte();
+      int googleAuthType = rsaBuffer.readUnsignedByte();
 
-                  byte[] payload = new byte[compression != 0 ? length + 4 : length];
-                  System.arraycopy(file.array(), 5, payload, 0, payload.length);
+      int[] seeds = new int[4];
+      for (int i = 0; i < seeds.length; i++) {
+        seeds[i] = rsaBuffer.readInt();
+      }
 
-                  int offset = 8;
-                  for (int byteValue : payload) {
-                    if (offset == 512) {
-                      response.writeByte(0xFF);
-                      offset = 1;
-                    }
+      switch (googleAuthType) {
+        case 0:
+        case 3:
+          /*
+           * The entered google auth code
+           */
+          rsaBuffer.readMedium();
+          rsaBuffer.skipBytes(5);
 
-                    response.writeByte(byteValue);
-                    offset++;
-                  }
-                }
+          break;
+        case 1:
+          /*
+           * Trust computer for 30 days
+           */
+          rsaBuffer.skipBytes(8);
 
-                ctx.writeAndFlush(response, ctx.voidPromise());
+          break;
+        case 2:
+          /*
+           * New request, sent every time the user has pressed on the 'login' button to
+           * enter the account details.
+           */
+          rsaBuffer.readInt();
+          rsaBuffer.skipBytes(4);
 
-                break;
-              case 2:
-              case 3:
-                in.skipBytes(3); // skip padding
+          break;
+      }
 
-                break;
-              case 4:
-                int encryptionVal = in.readUnsignedByte();
-                in.skipBytes(2); // skip padding
+      String password = readCString(rsaBuffer);
 
-                break;
-            }
+      // decrypt xtea block
+      decipher(in, in.readerIndex(), in.writerIndex(), seeds);
+
+      String username = readCString(in);
+
+      int clientFlags = in.readUnsignedByte(); // TODO low memory and??
+
+      int clientWidth = in.readUnsignedShort();
+      int clientHeight = in.readUnsignedShort();
+
+      int[] uid = new int[24];
+      for (int i = 0; i < uid.length; i++) {
+        uid[i] = in.readUnsignedByte();
+      }
+
+      String clientParam = readCString(in);
+      int someValue = in.readInt();
+
+      int sysBlockId = in.readUnsignedByte(); // must be 6
+      int osId = in.readUnsignedByte();
+      boolean bit64 = in.readUnsignedByte() == 1;
+      int osVersionId = in.readUnsignedByte();
+      int vendorId = in.readUnsignedByte();
+
+      in.skipBytes(4); // unknown bytes, requires more research
+
+      int maxMem = in.readUnsignedShort();
+      int amtCpu = in.readUnsignedByte();
+
+      in.readUnsignedMedium(); // padding?
+      in.readUnsignedShort(); // padding?
+
+      for (int i = 0; i < 4; i++) {
+        readDoubleEndedCString(in); // TODO
+      }
+
+      in.readUnsignedByte(); // TODO
+      in.readUnsignedShort(); // TODO
+
+      readDoubleEndedCString(in); // TODO
+      readDoubleEndedCString(in); // TODO
+
+      in.readUnsignedByte(); // TODO
+      in.readUnsignedByte(); // TODO
+
+      for (int i = 0; i < 3; i++) {
+        in.readInt(); // TODO
+      }
+
+      in.readInt(); // TODO
+      in.readUnsignedByte(); // TODO; client console argument?
+
+      int[] archives = new int[16];
+      for (int i = 0; i < archives.length; i++) {
+        archives[i] = in.readInt();
+      }
+
+      // ----- end of login decoding -----
+
+      int ownPlayerIdx = 1;
+      int playerCap = (1 << 11);
+
+      int regionX = 50;
+      int regionY = 50;
+      int tileX = 22;
+      int tileY = 22;
+      int plane = 0;
+
+      int chunkSize = 8;
+      int chunkX = (regionX * chunkSize);
+      int chunkY = (regionY * chunkSize);
+
+      int absX = (chunkX * chunkSize) | tileX;
+      int absY = (chunkY * chunkSize) | tileY;
+
+      int ownPlayerLocHash = absY | (plane << 28 | absX << 14);
+
+      // map region packet
+      ByteBuf regionPkt = ctx.alloc().buffer(256);
+
+      regionPkt.writeByte(chunkX + 128);
+      regionPkt.writeByte((chunkX >> 8));
+
+      regionPkt.writeByte((chunkX >> 8));
+      regionPkt.writeByte(chunkX + 128);
+
+      Set<Integer> surroundingRegions = new HashSet<>();
+      for (int y = (chunkY - 6) / 8; y <= (chunkY + 6) / 8; y++) {
+        for (int x = (chunkX - 6) / 8; x <= (chunkX + 6) / 8; x++) {
+          int id = y << 8 | x;
+
+          if (!surroundingRegions.contains(id)) {
+            surroundingRegions.add(id);
           }
+        }
+      }
 
-          break;
-        case LOGIN:
-          switch (stage) {
-            case HEADER:
-              if (in.readableBytes() >= 3) {
-                int connectionType = in.readUnsignedByte();
-                payloadSize = in.readUnsignedShort();
+      regionPkt.writeShort(surroundingRegions.size());
+      for (int i = 0; i < surroundingRegions.size(); i++) {
+        for (int z = 0; z < 4; z++) {
+          regionPkt.writeInt(0);
+        }
+      }
 
-                stage = Stage.PAYLOAD;
-              }
-              break;
-            case PAYLOAD:
-              if (in.readableBytes() >= payloadSize) {
-                int clientRev = in.readInt();
-                int rsaBlockSize = in.readUnsignedShort();
+      // player initialization
+      PacketStream stream = new PacketStream(ctx.alloc().buffer(4609));
+      stream.bitAccess();
 
-                ByteBuf rsaBuffer = crypt(ctx.alloc(), in, rsaBlockSize);
+      stream.writeBits(30, ownPlayerLocHash);
 
-                int rsaHeaderId = rsaBuffer.readUnsignedByte();
-                int googleAuthType = rsaBuffer.readUnsignedByte();
+      for (int i = 1; i < playerCap; i++) {
+        if (i != ownPlayerIdx) {
+          stream.writeBits(18, 0);
+        }
+      }
 
-                int[] seeds = new int[4];
-                for (int i = 0; i < seeds.length; i++) {
-                  seeds[i] = rsaBuffer.readInt();
-                }
+      stream.byteAccess();
 
-                switch (googleAuthType) {
-                  case 0:
-                  case 3:
-                    /*
-                     * The entered google auth code
-                     */
-                    rsaBuffer.readMedium();
-                    rsaBuffer.skipBytes(5);
-
-                    break;
-                  case 1:
-                    /*
-                     * Trust computer for 30 days
-                     */
-                    rsaBuffer.skipBytes(8);
-
-                    break;
-                  case 2:
-                    /*
-                     * New request, sent every time the user has pressed on the 'login' button to
-                     * enter the account details.
-                     */
-                    rsaBuffer.readInt();
-                    rsaBuffer.skipBytes(4);
-
-                    break;
-                }
+      // login response
+      ByteBuf response = ctx.alloc().buffer();
+      response.writeByte(2); // response code
+      response.writeByte(0); // TODO identify
+      response.writeInt(0);
+      response.writeByte(2); // privilege level
+      response.writeByte(0); // flagged
+      response.writeShort(ownPlayerIdx); // player index
+      response.writeByte(1); // member subscription
 
-                String password = readCString(rsaBuffer);
+      response.writeByte(42); // TODO isaac
+      response.writeShort(regionPkt.readableBytes() + stream.buffer.readableBytes());
 
-                // decrypt xtea block
-                decipher(in, in.readerIndex(), in.capacity(), seeds);
+      response.writeBytes(stream.buffer); // player init
+      response.writeBytes(regionPkt); // region change
 
-                String username = readCString(in);
+      // window pane
+      response.writeByte(32);
+      response.writeByte((165 >> 8));
+      response.writeByte(165 + 128);
 
-                int clientFlags = in.readUnsignedByte(); // TODO low memory and??
+      response.writeByte(32);
+      response.writeByte((548 >> 8));
+      response.writeByte(548 + 128);
 
-                int clientWidth = in.readUnsignedShort();
-                int clientHeight = in.readUnsignedShort();
+      ctx.writeAndFlush(response, ctx.voidPromise());
+    }
 
-                int[] uid = new int[24];
-                for (int i = 0; i < uid.length; i++) {
-                  uid[i] = in.readUnsignedByte();
-                }
+    private enum Stage {
+      HEADER, PAYLOAD, DECRYPT
+    }
 
-                String clientParam = readCString(in);
-                int someValue = in.readInt();
+    private enum Sequence {
+      HANDSHAKE, LOGIN, GAME
+    }
+  }
 
-                int sysBlockId = in.readUnsignedByte(); // must be 6
-                int osId = in.readUnsignedByte();
-                boolean bit64 = in.readUnsignedByte() == 1;
-                int osVersionId = in.readUnsignedByte();
-                int vendorId = in.readUnsignedByte();
+  private static class Js5Request {
+    private final boolean urgent;
+    private final int index;
+    private final int file;
 
-                in.skipBytes(4); // unknown bytes, requires more research
+    public Js5Request(boolean urgent, int index, int file) {
+      this.urgent = urgent;
+      this.index = index;
+      this.file = file;
+    }
+  }
 
-                int maxMem = in.readUnsignedShort();
-                int amtCpu = in.readUnsignedByte();
+  /*
+   * A response to a Js5Request. The content is the container as it is sent
+   * to the client: its compression type and length followed by the
+   * (compressed) data, without the trailing version.
+   */
+  private static class Js5Response extends DefaultByteBufHolder {
+    private final int index;
+    private final int file;
+
+    public Js5Response(int index, int file, ByteBuf container) {
+      super(container);
+      this.index = index;
+      this.file = file;
+    }
+  }
 
-                in.readUnsignedMedium(); // padding?
-                in.readUnsignedShort(); // padding?
+  private static class Js5RequestDecoder extends ByteToMessageDecoder {
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+      if (in.readableBytes() >= 4) {
+        int connectionType = in.readUnsignedByte();
+        switch (connectionType) {
+          case 0:
+          case 1:
+            int index = in.readUnsignedByte();
+            int file = in.readUnsignedShort();
+
+            out.add(new Js5Request(connectionType == 1, index, file));
+
+            break;
+          case 2:
+          case 3:
+            in.skipBytes(3); // skip padding
+
+            break;
+          case 4:
+            int encryptionVal = in.readUnsignedByte();
+            in.skipBytes(2); // skip padding
+
+            break;
+        }
+      }
+    }
+  }
 
-                for (int i = 0; i < 4; i++) {
-                  readDoubleEndedCString(in); // TODO
-                }
+  /*
+   * Frames Js5Responses for the client, which expects a 0xFF marker at the
+   * start of every 512 byte block after the first.
+   */
+  private static class Js5ResponseEncoder extends MessageToByteEncoder<Js5Response> {
+    private static final int BLOCK_SIZE = 512;
 
-                in.readUnsignedByte(); // TODO
-                in.readUnsignedShort(); // TODO
+    public static int getFramedLength(int containerLength) {
+      int length = 3 + containerLength;
+      return length + (length - 2) / (BLOCK_SIZE - 1);
+    }
 
-                readDoubleEndedCString(in); // TODO
-                readDoubleEndedCString(in); // TODO
+    public static void frame(int index, int file, ByteBuf container, ByteBuf out) {
+      out.writeByte(index);
+      out.writeShort(file);
+      out.writeBytes(container, Math.min(BLOCK_SIZE - 3, container.readableBytes()));
 
-                in.readUnsignedByte(); // TODO
-                in.readUnsignedByte(); // TODO
+      while (container.isReadable()) {
+        out.writeByte(0xFF);
+        out.writeBytes(container, Math.min(BLOCK_SIZE - 1, container.readableBytes()));
+      }
+    }
 
-                for (int i = 0; i < 3; i++) {
-                  in.readInt(); // TODO
-                }
+    @Override
+    protected ByteBuf allocateBuffer(ChannelHandlerContext ctx, Js5Response msg, boolean preferDirect) throws Exception {
+      int length = getFramedLength(msg.content().readableBytes());
+      return preferDirect ? ctx.alloc().ioBuffer(length) : ctx.alloc().heapBuffer(length);
+    }
 
-                in.readInt(); // TODO
-                in.readUnsignedByte(); // TODO; client console argument?
+    @Override
+    protected void encode(ChannelHandlerContext ctx, Js5Response msg, ByteBuf out) throws Exception {
+      frame(msg.index, msg.file, msg.content(), out);
+    }
+  }
 
-                int[] archives = new int[16];
-                for (int i = 0; i < archives.length; i++) {
-                  archives[i] = in.readInt();
-                }
+  /*
+   * Serves the Js5Requests of a single connection. Urgent requests, which
+   * the client sends for files it needs right now, are always served before
+   * prefetch requests. Responses are only written while the channel is
+   * writable and less than MAX_IN_FLIGHT bytes are waiting to be sent, so
+   * an urgent request never waits behind more than that much prefetched data.
+   * If the Js5Scheduler limits the upload rate, responses are also only
+   * written while the connection has credit left.
+   */
+  private static class Js5Handler extends SimpleChannelInboundHandler<Js5Request> {
+    private static final int MAX_IN_FLIGHT = Integer.getInteger("openrs.js5.inflight", 1024 * 1024);
+    private static final int MAX_PENDING = 8;
+
+    private final Deque<Js5Request> urgent = new ArrayDeque<>();
+    private final Deque<Js5Request> prefetch = new ArrayDeque<>();
+    private final Deque<CompletableFuture<Object>> pending = new ArrayDeque<>();
+    private final AtomicLong credit = new AtomicLong();
+    private volatile int queueDepth;
+    private long inFlight;
+    private ChannelHandlerContext ctx;
 
-                // ----- end of login decoding -----
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+      this.ctx = ctx;
+      scheduler.register(this);
+    }
 
-                int ownPlayerIdx = 1;
-                int playerCap = (1 << 11);
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, Js5Request request) throws Exception {
+      if (request.urgent) {
+        urgent.add(request);
+      } else {
+        prefetch.add(request);
+      }
 
-                int regionX = 50;
-                int regionY = 50;
-                int tileX = 22;
-                int tileY = 22;
-                int plane = 0;
+      queueDepth = urgent.size() + prefetch.size();
+    }
 
-                int chunkSize = 8;
-                int chunkX = (regionX * chunkSize);
-                int chunkY = (regionY * chunkSize);
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+      drain(ctx);
+    }
 
-                int absX = (chunkX * chunkSize) | tileX;
-                int absY = (chunkY * chunkSize) | tileY;
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+      if (ctx.channel().isWritable()) {
+        drain(ctx);
+      }
 
-                int ownPlayerLocHash = absY | (plane << 28 | absX << 14);
+      ctx.fireChannelWritabilityChanged();
+    }
 
-                // map region packet
-                ByteBuf regionPkt = ctx.alloc().buffer(256);
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+      scheduler.unregister(this);
 
-                regionPkt.writeByte(chunkX + 128);
-                regionPkt.writeByte((chunkX >> 8));
+      urgent.clear();
+      prefetch.clear();
+      queueDepth = 0;
 
-                regionPkt.writeByte((chunkX >> 8));
-                regionPkt.writeByte(chunkX + 128);
+      ctx.fireChannelInactive();
+    }
 
-                Set<Integer> surroundingRegions = new HashSet<>();
-                for (int y = (chunkY - 6) / 8; y <= (chunkY + 6) / 8; y++) {
-                  for (int x = (chunkX - 6) / 8; x <= (chunkX + 6) / 8; x++) {
-                    int id = y << 8 | x;
+    public Channel getChannel() {
+      return ctx.channel();
+    }
 
-                    if (!surroundingRegions.contains(id)) {
-                      surroundingRegions.add(id);
-                    }
-                  }
-                }
+    public int getQueueDepth() {
+      return queueDepth;
+    }
 
-                regionPkt.writeShort(surroundingRegions.size());
-                for (int i = 0; i < surroundingRegions.size(); i++) {
-                  for (int z = 0; z < 4; z++) {
-                    regionPkt.writeInt(0);
-                  }
-                }
+    /*
+     * Called by the Js5Scheduler to hand out the bytes this connection may
+     * send. Credit does not build up beyond a single grant while the
+     * connection is idle, but a connection which overdrew its credit to send
+     * a large response has to pay it back first.
+     */
+    public void grant(long bytes) {
+      if (credit.accumulateAndGet(bytes, (current, grant) -> Math.min(current + grant, grant)) > 0) {
+        ctx.executor().execute(() -> drain(ctx));
+      }
+    }
 
-                // player initialization
-                PacketStream stream = new PacketStream(ctx.alloc().buffer(4609));
-                stream.bitAccess();
+    private void drain(ChannelHandlerContext ctx) {
+      boolean written = false;
 
-                stream.writeBits(30, ownPlayerLocHash);
+      while (pending.size() < MAX_PENDING && inFlight < MAX_IN_FLIGHT && ctx.channel().isWritable() && (!scheduler.isLimited() || credit.get() > 0)) {
+        Js5Request request = urgent.poll();
+        if (request == null) {
+          request = prefetch.poll();
+        }
 
-                for (int i = 1; i < playerCap; i++) {
-                  if (i != ownPlayerIdx) {
-                    stream.writeBits(18, 0);
-                  }
-                }
+        if (request == null) {
+          break;
+        }
+
+        queueDepth = urgent.size() + prefetch.size();
+
+        Object response;
+        try {
+          response = respondNow(ctx, request);
+        } catch (IOException e) {
+          ctx.fireExceptionCaught(e);
+          continue;
+        }
+
+        if (response != null && pending.isEmpty()) {
+          write(ctx, response);
+          written = true;
+          continue;
+        }
+
+        /*
+         * Cache misses are read on the I/O executor so they do not block the
+         * event loop. Responses are still written in the order they were
+         * requested, as they are taken from the head of the pending queue.
+         */
+        CompletableFuture<Object> future;
+        if (response != null) {
+          future = CompletableFuture.completedFuture(response);
+        } else {
+          Js5Request miss = request;
+          future = CompletableFuture.supplyAsync(() -> {
+            try {
+              return respond(miss);
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          }, ioExecutor);
+        }
 
-                stream.byteAccess();
+        pending.add(future);
+        future.whenComplete((result, cause) -> ctx.executor().execute(() -> complete(ctx)));
+      }
 
-                // login response
-                ByteBuf response = ctx.alloc().buffer();
-                response.writeByte(2); // response code
-                response.writeByte(0); // TODO identify
-                response.writeInt(0);
-                response.writeByte(2); // privilege level
-                response.writeByte(0); // flagged
-                response.writeShort(ownPlayerIdx); // player index
-                response.writeByte(1); // member subscription
+      if (written) {
+        ctx.flush();
+      }
+    }
 
-                response.writeByte(42); // TODO isaac
-                response.writeShort(regionPkt.readableBytes() + stream.buffer.readableBytes());
+    private void complete(ChannelHandlerContext ctx) {
+      boolean written = false;
+
+      while (!pending.isEmpty() && pending.peek().isDone()) {
+        CompletableFuture<Object> future = pending.poll();
+        try {
+          write(ctx, future.join());
+          written = true;
+        } catch (CompletionException e) {
+          Throwable cause = e.getCause();
+          ctx.fireExceptionCaught(cause instanceof UncheckedIOException ? cause.getCause() : cause);
+        }
+      }
 
-                response.writeBytes(stream.buffer); // player init
-                response.writeBytes(regionPkt); // region change
+      if (written) {
+        ctx.flush();
+      }
 
-                // window pane
-                response.writeByte(32);
-                response.writeByte((165 >> 8));
-                response.writeByte(165 + 128);
+      drain(ctx);
+    }
 
-                response.writeByte(32);
-                response.writeByte((548 >> 8));
-                response.writeByte(548 + 128);
+    private void write(ChannelHandlerContext ctx, Object response) {
+      long size = getSize(response);
+      inFlight += size;
+      if (scheduler.isLimited()) {
+        credit.addAndGet(-size);
+      }
 
-                ctx.writeAndFlush(response, ctx.voidPromise());
-              }
+      ctx.write(response).addListener(future -> {
+        inFlight -= size;
+        if (future.isSuccess()) {
+          drain(ctx);
+        }
+      });
+    }
 
-              break;
+    /*
+     * Returns the response if it can be built without reading from the
+     * cache, or null if it has to be read.
+     */
+    private static Object respondNow(ChannelHandlerContext ctx, Js5Request request) throws IOException {
+      if (request.index == 0xFF && request.file == 0xFF) {
+        ByteBuffer table = cache.getEncodedChecksumTable();
+
+        ByteBuf container = ctx.alloc().buffer(5 + table.remaining());
+        container.writeByte(0);
+        container.writeInt(table.remaining());
+        container.writeBytes(table);
+
+        return new Js5Response(request.index, request.file, container);
+      } else if (framedResponses != null) {
+        return framedResponses.peek(request.index, request.file);
+      } else {
+        return responses.peek(request.index, request.file);
+      }
+    }
+
+    private static Object respond(Js5Request request) throws IOException {
+      if (framedResponses != null) {
+        return framedResponses.get(request.index, request.file);
+      } else {
+        return responses.get(request.index, request.file);
+      }
+    }
+
+    private static long getSize(Object response) {
+      if (response instanceof Js5Response) {
+        return Js5ResponseEncoder.getFramedLength(((Js5Response) response).content().readableBytes());
+      } else if (response instanceof FileRegion) {
+        return ((FileRegion) response).count();
+      } else {
+        return ((ByteBuf) response).readableBytes();
+      }
+    }
+  }
+
+  /*
+   * Shares the upload bandwidth between every JS5 connection. Every tick the
+   * bytes allowed by the total rate are handed out round-robin to the
+   * connections with queued requests, with no connection getting more than
+   * the per-client rate allows. A connection may overdraw its credit to
+   * send a response larger than its share, and then waits until later
+   * grants have paid it back, so over time every busy connection sends the
+   * same number of bytes (deficit round-robin). Without either rate limit
+   * connections are not throttled at all.
+   */
+  private static class Js5Scheduler {
+    private static final int TICK_MILLIS = 10;
+
+    private final long totalQuantum;
+    private final long clientQuantum;
+    private final List<Js5Handler> handlers = new CopyOnWriteArrayList<>();
+    private int next;
+
+    public Js5Scheduler(long totalRate, long clientRate) {
+      this.totalQuantum = totalRate > 0 ? Math.max(1, totalRate * TICK_MILLIS / 1000) : Long.MAX_VALUE;
+      this.clientQuantum = clientRate > 0 ? Math.max(1, clientRate * TICK_MILLIS / 1000) : Long.MAX_VALUE;
+
+      if (isLimited()) {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("js5-scheduler", true));
+        executor.scheduleAtFixedRate(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    public boolean isLimited() {
+      return totalQuantum != Long.MAX_VALUE || clientQuantum != Long.MAX_VALUE;
+    }
+
+    public void register(Js5Handler handler) {
+      handlers.add(handler);
+    }
+
+    public void unregister(Js5Handler handler) {
+      handlers.remove(handler);
+    }
+
+    /*
+     * Returns the number of queued requests of every connection.
+     */
+    public Map<SocketAddress, Integer> getQueueDepths() {
+      Map<SocketAddress, Integer> depths = new HashMap<>();
+      for (Js5Handler handler : handlers) {
+        depths.put(handler.getChannel().remoteAddress(), handler.getQueueDepth());
+      }
+
+      return depths;
+    }
+
+    private void tick() {
+      List<Js5Handler> active = new ArrayList<>();
+      for (Js5Handler handler : handlers) {
+        if (handler.getQueueDepth() > 0 && handler.getChannel().isWritable()) {
+          active.add(handler);
+        }
+      }
+
+      int count = active.size();
+      if (count == 0) {
+        return;
+      }
+
+      long share = Math.max(1, Math.min(clientQuantum, totalQuantum / count));
+      long budget = totalQuantum;
+
+      /* start where the last tick stopped, in case the budget runs out */
+      int served = 0;
+      while (served < count && budget > 0) {
+        long grant = Math.min(share, budget);
+        active.get((next + served) % count).grant(grant);
+
+        budget -= grant;
+        served++;
+      }
+
+      next = (next + served) % count;
+    }
+  }
+
+  /*
+   * Holds framed responses in direct buffers so they can be written without
+   * copying. At most openrs.js5.responses.capacity (64 MiB) bytes of
+   * responses are held off-heap, and the least recently used are released
+   * first. A capacity of 0 turns the cache off.
+   */
+  private static class ResponseCache {
+    private final Cache cache;
+    private final long capacity;
+    private final LinkedHashMap<Integer, ByteBuf> responses = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+    private long generation;
+
+    public ResponseCache(Cache cache, long capacity) {
+      this.cache = cache;
+      this.capacity = capacity;
+    }
+
+    /*
+     * Returns a retained duplicate of the framed response, which the caller
+     * must write or release. Responses are encoded the first time they are
+     * requested and shared by every connection afterwards.
+     */
+    public ByteBuf get(int index, int file) throws IOException {
+      Integer key = (index << 16) | file;
+
+      while (true) {
+        long generation;
+        synchronized (this) {
+          ByteBuf response = responses.get(key);
+          if (response != null) {
+            return response.retainedDuplicate();
           }
 
+          generation = this.generation;
+        }
+
+        ByteBuf response = frame(cache, index, file);
+        synchronized (this) {
+          /* a file was written while we framed this one, which may be stale */
+          if (generation != this.generation) {
+            response.release();
+            continue;
+          }
+
+          ByteBuf existing = responses.get(key);
+          if (existing != null) {
+            response.release();
+            return existing.retainedDuplicate();
+          }
+
+          int weight = response.readableBytes();
+          if (weight > capacity) {
+            return response;
+          }
+
+          responses.put(key, response);
+          size += weight;
+
+          /* release the least recently used responses until we fit */
+          Iterator<ByteBuf> it = responses.values().iterator();
+          while (size > capacity && it.hasNext()) {
+            ByteBuf evicted = it.next();
+            it.remove();
+            size -= evicted.readableBytes();
+            evicted.release();
+          }
+
+          return response.retainedDuplicate();
+        }
+      }
+    }
+
+    /*
+     * Returns a retained duplicate of the framed response if it has already
+     * been encoded, or null if it has not.
+     */
+    public synchronized ByteBuf peek(int index, int file) {
+      ByteBuf response = responses.get((index << 16) | file);
+      return response == null ? null : response.retainedDuplicate();
+    }
+
+    /*
+     * Drops the response of a file which has been written. Responses framed
+     * while the file was being written are framed again rather than kept, as
+     * they may hold the old file.
+     */
+    public synchronized void invalidate(int index, int file) {
+      generation++;
+
+      ByteBuf response = responses.remove((index << 16) | file);
+      if (response != null) {
+        size -= response.readableBytes();
+        response.release();
+      }
+    }
+
+    public static ByteBuf frame(Cache cache, int index, int file) throws IOException {
+      ByteBuffer data = cache.getStore().read(index, file);
+
+      int compression = data.get(0) & 0xFF;
+      int length = data.getInt(1);
+      int containerLength = 5 + (compression != 0 ? length + 4 : length);
+
+      data.limit(containerLength);
+      ByteBuf container = Unpooled.wrappedBuffer(data);
+
+      ByteBuf response = Unpooled.directBuffer(Js5ResponseEncoder.getFramedLength(containerLength));
+      Js5ResponseEncoder.frame(index, file, container, response);
+      return response;
+    }
+  }
+
+  private static class FramedStore {
+    private static final String DATA_FILE = "main_file_cache.js5";
+    private static final String INDEX_FILE = "main_file_cache.js5idx";
+    private static final int INDEX_HEADER_SIZE = 4;
+    private static final int INDEX_ENTRY_SIZE = 15;
+
+    private final Cache cache;
+    private final FileChannel data;
+    private final FileChannel index;
+    private final ConcurrentMap<Integer, Region> regions = new ConcurrentHashMap<>();
+    private long generation;
+    private boolean revisionChanged;
+    private boolean tombstoneFailed;
+
+    /*
+     * Opens the framed responses stored beside the cache in the specified
+     * directory. The files are only reused if they were built from the same
+     * checksum table, i.e. the same cache revision, otherwise they are
+     * discarded and rebuilt lazily as files are requested. Files written
+     * while the server is running are dropped with a tombstone entry (a
+     * negative length) in the index, and the revision in the header is
+     * brought up to date the next time a response is stored. If a tombstone
+     * cannot be written, the header is left at the old revision so that the
+     * files are rebuilt when the server is restarted.
+     */
+    public FramedStore(Cache cache, ByteBuffer checksumTable, File root) throws IOException {
+      this.cache = cache;
+      this.data = new RandomAccessFile(new File(root, DATA_FILE), "rw").getChannel();
+      this.index = new RandomAccessFile(new File(root, INDEX_FILE), "rw").getChannel();
+
+      int revision = getRevision(checksumTable);
+
+      ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_SIZE);
+      if (index.size() >= INDEX_HEADER_SIZE) {
+        FileChannelUtils.readFully(index, header, 0);
+      }
+
+      if (header.position() == 0 || header.getInt(0) != revision) {
+        data.truncate(0);
+        index.truncate(0);
+
+        header.clear();
+        header.putInt(revision).flip();
+        FileChannelUtils.writeFully(index, header, 0);
+        return;
+      }
+
+      long dataSize = data.size();
+      long count = (index.size() - INDEX_HEADER_SIZE) / INDEX_ENTRY_SIZE;
+
+      ByteBuffer entries = ByteBuffer.allocate((int) (count * INDEX_ENTRY_SIZE));
+      FileChannelUtils.readFully(index, entries, INDEX_HEADER_SIZE);
+      entries.flip();
+
+      long end = 0;
+      long loaded = 0;
+      while (entries.hasRemaining()) {
+        int type = entries.get() & 0xFF;
+        int file = entries.getShort() & 0xFFFF;
+        long position = entries.getLong();
+        int length = entries.getInt();
+
+        if (length < 0) {
+          regions.remove((type << 16) | file);
+          loaded++;
+          continue;
+        }
+
+        /* entries whose data did not make it to disk are rebuilt */
+        if (position + length > dataSize) {
           break;
+        }
+
+        regions.put((type << 16) | file, new Region(position, length));
+        end = Math.max(end, position + length);
+        loaded++;
       }
+
+      index.truncate(INDEX_HEADER_SIZE + loaded * INDEX_ENTRY_SIZE);
+      data.truncate(end);
     }
 
-    private enum Stage {
-      HEADER, PAYLOAD
+    private static int getRevision(ByteBuffer checksumTable) {
+      CRC32 crc = new CRC32();
+      crc.update(checksumTable.duplicate());
+      return (int) crc.getValue();
     }
 
-    private enum Sequence {
-      HANDSHAKE, ONDEMAND, LOGIN, GAME
+    /*
+     * Returns a region of the data file holding the framed response, which
+     * the caller must write or release. Releasing the region does not close
+     * the shared data file.
+     */
+    public FileRegion get(int type, int file) throws IOException {
+      Integer key = (type << 16) | file;
+
+      Region region = regions.get(key);
+      if (region == null) {
+        region = append(key, type, file);
+      }
+
+      return new SharedFileRegion(data, region.position, region.length);
+    }
+
+    /*
+     * Returns a region of the data file holding the framed response if it
+     * has already been stored, or null if it has not.
+     */
+    public FileRegion peek(int type, int file) {
+      Region region = regions.get((type << 16) | file);
+      return region == null ? null : new SharedFileRegion(data, region.position, region.length);
+    }
+
+    /*
+     * Frames the response and appends it to the data file. Framing reads
+     * from the cache, so it is done before taking the lock, which only
+     * covers reserving the end of the files and writing the response there.
+     */
+    private Region append(Integer key, int type, int file) throws IOException {
+      while (true) {
+        long generation;
+        boolean revisionChanged;
+        synchronized (this) {
+          Region region = regions.get(key);
+          if (region != null) {
+            return region;
+          }
+
+          generation = this.generation;
+          revisionChanged = this.revisionChanged && !tombstoneFailed;
+        }
+
+        ByteBuffer checksumTable = revisionChanged ? cache.getEncodedChecksumTable() : null;
+        ByteBuf response = ResponseCache.frame(cache, type, file);
+        try {
+          synchronized (this) {
+            /* a file was written while we framed this one, which may be stale */
+            if (generation != this.generation) {
+              continue;
+            }
+
+            if (checksumTable != null) {
+              ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_SIZE);
+              header.putInt(getRevision(checksumTable)).flip();
+              FileChannelUtils.writeFully(index, header, 0);
+              this.revisionChanged = false;
+            }
+
+            long position = data.size();
+            int length = response.readableBytes();
+            FileChannelUtils.writeFully(data, response.nioBuffer(), position);
+            writeEntry(type, file, position, length);
+
+            Region region = new Region(position, length);
+            regions.put(key, region);
+            return region;
+          }
+        } finally {
+          response.release();
+        }
+      }
+    }
+
+    /*
+     * Drops the stored response of a file which has been written. Responses
+     * framed while the file was being written are framed again rather than
+     * stored, as they may hold the old file. This is called once the cache
+     * has been written, so a failure to write the tombstone is logged rather
+     * than thrown: the response is still dropped from memory.
+     */
+    public synchronized void invalidate(int type, int file) {
+      generation++;
+      if (type == 0xFF) {
+        revisionChanged = true;
+      }
+
+      if (regions.remove((type << 16) | file) != null) {
+        try {
+          writeEntry(type, file, 0, -1);
+        } catch (IOException e) {
+          tombstoneFailed = true;
+          System.err.println("failed to drop the framed response of " + type + "/" + file + ": " + e);
+        }
+      }
+    }
+
+    private void writeEntry(int type, int file, long position, int length) throws IOException {
+      ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+      entry.put((byte) type);
+      entry.putShort((short) file);
+      entry.putLong(position);
+      entry.putInt(length);
+      entry.flip();
+      FileChannelUtils.writeFully(index, entry, index.size());
+    }
+
+    private static class Region {
+      private final long position;
+      private final int length;
+
+      public Region(long position, int length) {
+        this.position = position;
+        this.length = length;
+      }
+    }
+
+    private static class SharedFileRegion extends DefaultFileRegion {
+      public SharedFileRegion(FileChannel file, long position, long count) {
+        super(file, position, count);
+      }
+
+      @Override
+      protected void deallocate() {
+        /* the data file is shared by every region, so it is left open */
+      }
+    }
+  }
+
+  /*
+   * Records how long an operation took, e.g. the time from a login being
+   * received until its RSA block has been decrypted.
+   */
+  private static class LatencyMetric {
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+      count.increment();
+      totalNanos.add(nanos);
+      maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    public long getCount() {
+      return count.sum();
+    }
+
+    public long getMeanNanos() {
+      long n = count.sum();
+      return n == 0 ? 0 : totalNanos.sum() / n;
+    }
+
+    public long getMaxNanos() {
+      return maxNanos.get();
     }
   }
 
@@ -410,10 +1271,9 @@ public final class OS117 {
   }
 
   private static final int CSTRING_TERMINATOR = 0;
-  private static StringBuilder bldr = new StringBuilder();
 
   private static String readCString(ByteBuf in) {
-    bldr.delete(0, bldr.length());
+    StringBuilder bldr = new StringBuilder();
     while (in.isReadable()) {
       int character = in.readUnsignedByte();
       if (character == CSTRING_TERMINATOR) {
@@ -459,32 +1319,67 @@ public final class OS117 {
     }
   }
 
-  private static ByteBuf crypt(ByteBufAllocator allocator, ByteBuf inData, int size) {
-    byte[] bytes = new byte[size];
-    inData.readBytes(bytes);
-
-    BigInteger inInt = new BigInteger(bytes);
-    BigInteger outInt = inInt.modPow(RSA_EXPONENT, RSA_MODULUS);
-
-    byte[] outData = outInt.toByteArray();
-
-    ByteBuf out = allocator.buffer(outData.length);
-    out.writeBytes(outData);
-
-    return out;
+  private static byte[] crypt(byte[] bytes) {
+    return RSA_KEY.crypt(bytes);
   }
 
+  /*
+   * The server socket. The topology and socket options are read from system
+   * properties:
+   *
+   *   openrs.port             the port to listen on (43594)
+   *   openrs.threads.boss     the threads accepting connections (1)
+   *   openrs.threads.worker   the threads serving connections (0, i.e. twice
+   *                           the number of cores)
+   *   openrs.epoll            use the native epoll transport on Linux when it
+   *                           is available (true)
+   *   openrs.so.sndbuf        SO_SNDBUF of each connection (0, i.e. the OS
+   *                           default)
+   *   openrs.so.rcvbuf        SO_RCVBUF of each connection (0, i.e. the OS
+   *                           default)
+   *   openrs.watermark.low    the write buffer low water mark (32 KiB)
+   *   openrs.watermark.high   the write buffer high water mark (64 KiB, or
+   *                           the low water mark if that is higher)
+   */
   private static class ServerChannel {
     public volatile Channel channel;
 
     public ServerChannel() throws Exception {
       ServerBootstrap bootstrap = new ServerBootstrap();
 
+      int bossThreads = Integer.getInteger("openrs.threads.boss", 1);
+      int workerThreads = Integer.getInteger("openrs.threads.worker", 0);
+
+      if (Boolean.parseBoolean(System.getProperty("openrs.epoll", "true")) && Epoll.isAvailable()) {
+        bootstrap.group(new EpollEventLoopGroup(bossThreads), new EpollEventLoopGroup(workerThreads));
+        bootstrap.channel(EpollServerSocketChannel.class);
+      } else {
+        bootstrap.group(new NioEventLoopGroup(bossThreads), new NioEventLoopGroup(workerThreads));
+        bootstrap.channel(NioServerSocketChannel.class);
+      }
+
       bootstrap.childHandler(new Initializer());
-      bootstrap.group(new NioEventLoopGroup(1));
-      bootstrap.channel(NioServerSocketChannel.class);
-      bootstrap.localAddress(new InetSocketAddress(43594));
-      bootstrap.option(ChannelOption.TCP_NODELAY, true);
+      bootstrap.localAddress(new InetSocketAddress(Integer.getInteger("openrs.port", 43594)));
+      bootstrap.childOption(ChannelOption.TCP_NODELAY, true);
+
+      int sendBufferSize = Integer.getInteger("openrs.so.sndbuf", 0);
+      if (sendBufferSize > 0) {
+        bootstrap.childOption(ChannelOption.SO_SNDBUF, sendBufferSize);
+      }
+
+      int receiveBufferSize = Integer.getInteger("openrs.so.rcvbuf", 0);
+      if (receiveBufferSize > 0) {
+        bootstrap.childOption(ChannelOption.SO_RCVBUF, receiveBufferSize);
+      }
+
+      /* only raising the low water mark also raises the default high one */
+      int lowWaterMark = Integer.getInteger("openrs.watermark.low", WriteBufferWaterMark.DEFAULT.low());
+      int highWaterMark = Integer.getInteger("openrs.watermark.high", Math.max(lowWaterMark, WriteBufferWaterMark.DEFAULT.high()));
+      if (lowWaterMark < 0 || highWaterMark < lowWaterMark) {
+        throw new IllegalArgumentException("openrs.watermark.low (" + lowWaterMark + ") must be at least 0 and at most openrs.watermark.high ("
+            + highWaterMark + ")");
+      }
+      bootstrap.childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(lowWaterMark, highWaterMark));
 
       this.channel = bootstrap.bind().sync().channel();
     }
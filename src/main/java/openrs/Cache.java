@@ -3,33 +3,365 @@ package openrs;
 import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
-import java.util.zip.CRC32;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import openrs.util.ByteBufferUtils;
-import openrs.util.crypto.Whirlpool;
 
 /**
  * The {@link Cache} class provides a unified, high-level API for modifying
  * the cache of a Jagex game.
+ * <p>
+ * A cache is safe for use by multiple threads, in the same way as the
+ * {@link FileStore} backing it: reads run in parallel and writes are
+ * serialized per type.
  *
  * @author Graham
  * @author `Discardedx2
  */
 public final class Cache implements Closeable {
 
+  /**
+   * A {@link Batch} stages writes to many files of a single type and then
+   * saves them together, along with a single update to the type's
+   * {@link ReferenceTable}. This avoids decoding, encoding and saving the
+   * reference table once per file, and means its version is only incremented
+   * once for the whole batch.
+   * <p>
+   * A batch is not thread safe. If the reference table is modified by
+   * another writer between {@link Cache#beginBatch(int)} and
+   * {@link #commit()}, the commit fails rather than losing either set of
+   * changes.
+   */
+  public final class Batch {
+
+    /**
+     * The type of file in this batch.
+     */
+    private final int type;
+
+    /**
+     * The compression type of the reference table's container.
+     */
+    private final int compression;
+
+    /**
+     * The reference table, with the changes made by this batch applied.
+     */
+    private final ReferenceTable table;
+
+    /**
+     * The version of the reference table when this batch was started.
+     */
+    private final int version;
+
+    /**
+     * The encoded containers waiting to be saved, by file id.
+     */
+    private final Map<Integer, ByteBuffer> files = new LinkedHashMap<Integer, ByteBuffer>();
+
+    /**
+     * A flag indicating if this batch has been committed.
+     */
+    private boolean committed;
+
+    /**
+     * Creates a new batch.
+     *
+     * @param type        The type of file.
+     * @param compression The compression type of the reference table's
+     *                    container.
+     * @param table       The reference table.
+     */
+    private Batch(int type, int compression, ReferenceTable table) {
+      this.type = type;
+      this.compression = compression;
+      this.table = table;
+      this.version = table.getVersion();
+    }
+
+    /**
+     * Stages a file to be written when this batch is committed. Writing the
+     * same file twice replaces the earlier write.
+     *
+     * @param file      The file id.
+     * @param container The {@link Container} to write.
+     * @throws IOException if an I/O error occurs.
+     */
+    public void write(int file, Container container) throws IOException {
+      if (committed)
+        throw new IllegalStateException("Batch has already been committed");
+
+      files.put(file, encode(file, container, table));
+    }
+
+    /**
+     * Gets the number of files staged in this batch.
+     *
+     * @return The number of files.
+     */
+    public int size() {
+      return files.size();
+    }
+
+    /**
+     * Saves every staged file and then the reference table.
+     *
+     * @throws IOException if an I/O error occurs, or if the reference table
+     *                     was modified after this batch was started.
+     */
+    public void commit() throws IOException {
+      if (committed)
+        throw new IllegalStateException("Batch has already been committed");
+
+      Lock lock = locks[type & 0xFF].writeLock();
+      lock.lock();
+      try {
+        if (getReferenceTable(type).getVersion() != version)
+          throw new IOException("Reference table was modified while the batch was in progress");
+
+        writeFiles(type, files, compression, table);
+        committed = true;
+      } finally {
+        lock.unlock();
+      }
+
+      fireFilesWritten(type, files.keySet());
+    }
+
+  }
+
+  /**
+   * A file described by a {@link ReferenceTable} which does not match it,
+   * found by {@link Cache#verify()}.
+   */
+  public static final class Mismatch {
+
+    /**
+     * The ways in which a file can fail to match its reference table.
+     */
+    public enum Kind {
+
+      /**
+       * The file does not exist.
+       */
+      MISSING,
+
+      /**
+       * The file could not be read or is not a valid container.
+       */
+      CORRUPT,
+
+      /**
+       * The CRC checksum of the file is wrong.
+       */
+      CRC,
+
+      /**
+       * The whirlpool digest of the file is wrong.
+       */
+      WHIRLPOOL
+
+    }
+
+    /**
+     * The type of the file.
+     */
+    private final int type;
+
+    /**
+     * The file id.
+     */
+    private final int file;
+
+    /**
+     * The kind of mismatch.
+     */
+    private final Kind kind;
+
+    /**
+     * A description of the mismatch.
+     */
+    private final String message;
+
+    /**
+     * Creates a new mismatch.
+     *
+     * @param type    The type of the file.
+     * @param file    The file id.
+     * @param kind    The kind of mismatch.
+     * @param message A description of the mismatch.
+     */
+    public Mismatch(int type, int file, Kind kind, String message) {
+      this.type = type;
+      this.file = file;
+      this.kind = kind;
+      this.message = message;
+    }
+
+    /**
+     * Gets the type of the file.
+     *
+     * @return The type.
+     */
+    public int getType() {
+      return type;
+    }
+
+    /**
+     * Gets the file id.
+     *
+     * @return The file id.
+     */
+    public int getFile() {
+      return file;
+    }
+
+    /**
+     * Gets the kind of mismatch.
+     *
+     * @return The kind.
+     */
+    public Kind getKind() {
+      return kind;
+    }
+
+    /**
+     * Gets a description of the mismatch.
+     *
+     * @return The description.
+     */
+    public String getMessage() {
+      return message;
+    }
+
+    @Override
+    public String toString() {
+      return type + "/" + file + ": " + kind + " (" + message + ")";
+    }
+
+  }
+
+  /**
+   * A {@link Listener} is notified when a file is written through a
+   * {@link Cache}, e.g. so that copies of the file held elsewhere can be
+   * dropped.
+   */
+  public interface Listener {
+
+    /**
+     * Called after a file has been written. Listeners are only notified once
+     * both the files and the reference table describing them have been
+     * saved, and the type has been unlocked. A reference table is reported
+     * as file {@code type} of type 255, after the files it describes. An
+     * exception thrown by a listener does not affect the write.
+     *
+     * @param type The type of the file.
+     * @param file The file id.
+     */
+    void fileWritten(int type, int file);
+
+  }
+
+  /**
+   * The number of files checked by each task of {@link #verify()}.
+   */
+  private static final int VERIFY_RANGE_SIZE = 256;
+
   /**
    * The file store that backs this cache.
    */
   private final FileStore store;
 
+  /**
+   * The cache of recently read containers, or {@code null} if containers are
+   * always read from the store.
+   */
+  private final ContainerCache containers;
+
+  /**
+   * The read/write locks guarding each type. Writes update a file and its
+   * {@link ReferenceTable} together, so they hold the write lock for the
+   * whole read-modify-write cycle.
+   */
+  private final ReadWriteLock[] locks = new ReadWriteLock[256];
+
+  /**
+   * The decoded {@link ReferenceTable} of each type, or {@code null} if it
+   * has not been decoded yet. Tables written through this cache replace the
+   * cached ones, but tables written directly through the {@link FileStore}
+   * are not noticed.
+   */
+  private final AtomicReferenceArray<ReferenceTable> tables = new AtomicReferenceArray<ReferenceTable>(256);
+
+  /**
+   * The lock guarding the checksum table and its encoded form.
+   */
+  private final Object checksumLock = new Object();
+
+  /**
+   * The {@link ChecksumTable} of this cache, or {@code null} if it has not
+   * been built yet. Once built it is kept up to date as reference tables are
+   * written through this cache.
+   */
+  private ChecksumTable checksumTable;
+
+  /**
+   * The encoded checksum table, or {@code null} if the table has changed
+   * since it was last encoded.
+   */
+  private ByteBuffer encodedChecksumTable;
+
+  /**
+   * The number of reference tables written through this cache, used to
+   * notice writes made while the checksum table was being built.
+   */
+  private int referenceTableWrites;
+
+  /**
+   * The listeners notified when a file is written.
+   */
+  private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
   /**
    * Creates a new {@link Cache} backed by the specified {@link FileStore}.
    *
    * @param store The {@link FileStore} that backs this {@link Cache}.
    */
   public Cache(FileStore store) {
+    this(store, null);
+  }
+
+  /**
+   * Creates a new {@link Cache} backed by the specified {@link FileStore},
+   * which keeps recently read containers in the specified
+   * {@link ContainerCache}.
+   *
+   * @param store      The {@link FileStore} that backs this {@link Cache}.
+   * @param containers The {@link ContainerCache}, or {@code null} if
+   *                   containers should always be read from the store.
+   */
+  public Cache(FileStore store, ContainerCache containers) {
     this.store = store;
+    this.containers = containers;
+    for (int i = 0; i < locks.length; i++)
+      locks[i] = new ReentrantReadWriteLock();
   }
 
   /**
@@ -53,6 +385,67 @@ public final class Cache implements Closeable {
     return store.getFileCount(type);
   }
 
+  /**
+   * Gets the {@link ContainerCache} used by this {@link Cache}.
+   *
+   * @return The container cache, or {@code null} if there isn't one.
+   */
+  public ContainerCache getContainerCache() {
+    return containers;
+  }
+
+  /**
+   * Adds a {@link Listener} to be notified when a file is written.
+   *
+   * @param listener The listener.
+   */
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Removes a {@link Listener}.
+   *
+   * @param listener The listener.
+   */
+  public void removeListener(Listener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Notifies every {@link Listener} that files of a type have been written,
+   * followed by the reference table of the type.
+   *
+   * @param type  The type of the files.
+   * @param files The file ids.
+   */
+  private void fireFilesWritten(int type, Collection<Integer> files) {
+    for (int file : files)
+      fireFileWritten(type, file);
+
+    fireFileWritten(255, type);
+  }
+
+  /**
+   * Notifies every {@link Listener} that a file has been written. The file
+   * has already been saved, so a listener which throws is reported to the
+   * uncaught exception handler of the current thread and the remaining
+   * listeners are still notified.
+   *
+   * @param type The type of the file.
+   * @param file The file id.
+   */
+  private void fireFileWritten(int type, int file) {
+    for (Listener listener : listeners) {
+      try {
+        listener.fileWritten(type, file);
+      } catch (RuntimeException e) {
+        Thread thread = Thread.currentThread();
+        thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+      }
+    }
+  }
+
   /**
    * Gets the {@link FileStore} that backs this {@link Cache}.
    *
@@ -62,43 +455,374 @@ public final class Cache implements Closeable {
     return store;
   }
 
+  /**
+   * Gets a copy of the {@link ChecksumTable} for this cache. The table is
+   * built the first time it is requested, and after that only the entry of
+   * a type is updated when its reference table is written.
+   *
+   * @return The {@link ChecksumTable}.
+   * @throws IOException if an I/O error occurs.
+   */
+  public ChecksumTable getChecksumTable() throws IOException {
+    while (true) {
+      int writes;
+      synchronized (checksumLock) {
+        if (checksumTable != null) {
+          ChecksumTable copy = new ChecksumTable(checksumTable.getSize());
+          for (int i = 0; i < checksumTable.getSize(); i++)
+            copy.setEntry(i, checksumTable.getEntry(i));
+          return copy;
+        }
+        writes = referenceTableWrites;
+      }
+      buildChecksumTable(writes);
+    }
+  }
+
+  /**
+   * Gets the encoded {@link ChecksumTable} for this cache. The encoded bytes
+   * are kept until the table next changes, so this is cheap to call for
+   * every client that asks for the update entries.
+   *
+   * @return A read only {@link ByteBuffer} containing the encoded table.
+   * @throws IOException if an I/O error occurs.
+   */
+  public ByteBuffer getEncodedChecksumTable() throws IOException {
+    while (true) {
+      int writes;
+      synchronized (checksumLock) {
+        if (checksumTable != null) {
+          if (encodedChecksumTable == null)
+            encodedChecksumTable = checksumTable.encode();
+          return encodedChecksumTable.asReadOnlyBuffer();
+        }
+        writes = referenceTableWrites;
+      }
+      buildChecksumTable(writes);
+    }
+  }
+
+  /**
+   * Builds the live checksum table from scratch. This is done without
+   * holding the checksum lock, as it takes the lock of each type and a
+   * writer holding one of those may be waiting for the checksum lock. If a
+   * reference table is written in the meantime the new table is discarded,
+   * as it may have missed the write.
+   *
+   * @param writes The number of reference tables written before starting.
+   * @throws IOException if an I/O error occurs.
+   */
+  private void buildChecksumTable(int writes) throws IOException {
+    ChecksumTable table = createChecksumTable();
+    synchronized (checksumLock) {
+      if (checksumTable == null && referenceTableWrites == writes) {
+        checksumTable = table;
+        encodedChecksumTable = null;
+      }
+    }
+  }
+
+  /**
+   * Updates the entry of a type in the live checksum table after its
+   * reference table has been written, if the checksum table has been built.
+   * The caller must hold the write lock of the type.
+   *
+   * @param type    The type.
+   * @param buffer  The encoded reference table container.
+   * @param version The version of the reference table.
+   */
+  private void updateChecksumTable(int type, ByteBuffer buffer, int version) {
+    synchronized (checksumLock) {
+      referenceTableWrites++;
+      if (checksumTable == null)
+        return;
+    }
+
+    byte[] whirlpool = new byte[64];
+    int crc = ByteBufferUtils.getChecksums(buffer, 0, buffer.limit(), whirlpool);
+
+    synchronized (checksumLock) {
+      if (checksumTable == null)
+        return;
+
+      /* a new type changes the size of the table, so build it again */
+      if (type >= checksumTable.getSize()) {
+        checksumTable = null;
+      } else {
+        checksumTable.setEntry(type, new ChecksumTable.Entry(crc, version, whirlpool));
+      }
+      encodedChecksumTable = null;
+    }
+  }
+
   /**
    * Computes the {@link ChecksumTable} for this cache. The checksum table
-   * forms part of the so-called "update entries".
+   * forms part of the so-called "update entries". The reference tables are
+   * read and hashed in parallel on the common {@link ForkJoinPool}.
    *
    * @return The {@link ChecksumTable}.
    * @throws IOException if an I/O error occurs.
    */
   public ChecksumTable createChecksumTable() throws IOException {
+    return createChecksumTable(ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Computes the {@link ChecksumTable} for this cache, reading and hashing
+   * the reference table of each type in parallel on the specified pool.
+   *
+   * @param pool The pool.
+   * @return The {@link ChecksumTable}.
+   * @throws IOException if an I/O error occurs.
+   */
+  public ChecksumTable createChecksumTable(ForkJoinPool pool) throws IOException {
     /* create the checksum table */
     int size = store.getTypeCount();
     ChecksumTable table = new ChecksumTable(size);
 
-		/* loop through all the reference tables and get their CRC and versions */
+    /* get the CRC, version and whirlpool hash of every reference table at once */
+    List<ForkJoinTask<ChecksumTable.Entry>> tasks = new ArrayList<ForkJoinTask<ChecksumTable.Entry>>(size);
     for (int i = 0; i < size; i++) {
-      ByteBuffer buf = store.read(255, i);
+      final int type = i;
+      tasks.add(pool.submit(new Callable<ChecksumTable.Entry>() {
+        @Override
+        public ChecksumTable.Entry call() throws IOException {
+          return createChecksumEntry(type);
+        }
+      }));
+    }
+
+    for (int i = 0; i < size; i++)
+      table.setEntry(i, join(tasks.get(i)));
+
+		/* return the table */
+    return table;
+  }
 
-      int crc = 0;
-      int version = 0;
-      byte[] whirlpool = new byte[64];
+  /**
+   * Computes the {@link ChecksumTable} entry of a single type.
+   *
+   * @param type The type.
+   * @return The entry.
+   * @throws IOException if an I/O error occurs.
+   */
+  private ChecksumTable.Entry createChecksumEntry(int type) throws IOException {
+    int crc = 0;
+    int version = 0;
+    byte[] whirlpool = new byte[64];
 
-			/* 
+    Lock lock = locks[type].readLock();
+    lock.lock();
+    try {
+      ByteBuffer buf = store.read(255, type);
+
+      /*
        * if there is actually a reference table, calculate the CRC,
-			 * version and whirlpool hash
-			 */
+       * version and whirlpool hash
+       */
       if (buf.limit() > 0) { // some indices are not used, is this appropriate?
-        ReferenceTable ref = ReferenceTable.decode(Container.decode(buf).getData());
-        crc = ByteBufferUtils.getCrcChecksum(buf);
-        version = ref.getVersion();
-        buf.position(0);
-        whirlpool = ByteBufferUtils.getWhirlpoolDigest(buf);
+        crc = ByteBufferUtils.getChecksums(buf, 0, buf.limit(), whirlpool);
+        version = getReferenceTable(type).getVersion();
       }
+    } finally {
+      lock.unlock();
+    }
+
+    return new ChecksumTable.Entry(crc, version, whirlpool);
+  }
+
+  /**
+   * Checks that every file described by the reference tables exists and
+   * matches the CRC and, where the table has them, whirlpool digest recorded
+   * for it. The types, and ranges of files within each type, are checked in
+   * parallel on the common {@link ForkJoinPool}.
+   *
+   * @return The mismatches found, ordered by type and file.
+   * @throws IOException if an I/O error occurs.
+   */
+  public List<Mismatch> verify() throws IOException {
+    return verify(ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Checks that every file described by the reference tables exists and
+   * matches the CRC and, where the table has them, whirlpool digest recorded
+   * for it, in parallel on the specified pool. Each type is read locked while
+   * it is checked, so it is checked against a consistent reference table.
+   *
+   * @param pool The pool.
+   * @return The mismatches found, ordered by type and file.
+   * @throws IOException if an I/O error occurs.
+   */
+  public List<Mismatch> verify(ForkJoinPool pool) throws IOException {
+    int size = store.getTypeCount();
 
-      table.setEntry(i, new ChecksumTable.Entry(crc, version, whirlpool));
+    List<ForkJoinTask<List<Mismatch>>> tasks = new ArrayList<ForkJoinTask<List<Mismatch>>>(size);
+    for (int i = 0; i < size; i++) {
+      final int type = i;
+      tasks.add(pool.submit(new Callable<List<Mismatch>>() {
+        @Override
+        public List<Mismatch> call() throws IOException {
+          return verify(type);
+        }
+      }));
     }
 
-		/* return the table */
-    return table;
+    List<Mismatch> mismatches = new ArrayList<Mismatch>();
+    for (ForkJoinTask<List<Mismatch>> task : tasks)
+      mismatches.addAll(join(task));
+    return mismatches;
+  }
+
+  /**
+   * Checks the files of a single type, splitting them into ranges which are
+   * checked by separate tasks. This must run in a {@link ForkJoinPool}.
+   *
+   * @param type The type.
+   * @return The mismatches found, ordered by file.
+   * @throws IOException if an I/O error occurs.
+   */
+  private List<Mismatch> verify(final int type) throws IOException {
+    Lock lock = locks[type].readLock();
+    lock.lock();
+    try {
+      if (store.getFileSize(255, type) == 0)
+        return new ArrayList<Mismatch>();
+
+      final ReferenceTable table = getReferenceTable(type);
+
+      List<ForkJoinTask<List<Mismatch>>> tasks = new ArrayList<ForkJoinTask<List<Mismatch>>>();
+      for (int start = 0; start < table.capacity(); start += VERIFY_RANGE_SIZE) {
+        final int first = start;
+        final int last = Math.min(start + VERIFY_RANGE_SIZE, table.capacity());
+        tasks.add(ForkJoinTask.adapt(new Callable<List<Mismatch>>() {
+          @Override
+          public List<Mismatch> call() throws IOException {
+            return verify(type, table, first, last);
+          }
+        }).fork());
+      }
+
+      List<Mismatch> mismatches = new ArrayList<Mismatch>();
+      for (ForkJoinTask<List<Mismatch>> task : tasks)
+        mismatches.addAll(join(task));
+      return mismatches;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Checks a range of the files of a type against its reference table.
+   *
+   * @param type  The type.
+   * @param table The reference table.
+   * @param first The first file to check.
+   * @param last  One more than the last file to check.
+   * @return The mismatches found, ordered by file.
+   * @throws IOException if an I/O error occurs.
+   */
+  private List<Mismatch> verify(int type, ReferenceTable table, int first, int last) throws IOException {
+    List<Mismatch> mismatches = new ArrayList<Mismatch>();
+
+    for (int file = first; file < last; file++) {
+      ReferenceTable.Entry entry = table.getEntry(file);
+      if (entry == null)
+        continue;
+
+      ByteBuffer buf;
+      try {
+        buf = store.read(type, file);
+      } catch (FileNotFoundException e) {
+        mismatches.add(new Mismatch(type, file, Mismatch.Kind.MISSING, "file does not exist"));
+        continue;
+      } catch (IOException e) {
+        mismatches.add(new Mismatch(type, file, Mismatch.Kind.CORRUPT, String.valueOf(e.getMessage())));
+        continue;
+      }
+
+      Mismatch mismatch = check(type, file, table, entry, buf);
+      if (mismatch != null)
+        mismatches.add(mismatch);
+    }
+
+    return mismatches;
+  }
+
+  /**
+   * Checks the contents of a file against its reference table entry.
+   *
+   * @param type  The type of the file.
+   * @param file  The file id.
+   * @param table The reference table.
+   * @param entry The entry of the file in the reference table.
+   * @param buf   The contents of the file.
+   * @return The mismatch, or {@code null} if the file matches its entry.
+   */
+  static Mismatch check(int type, int file, ReferenceTable table, ReferenceTable.Entry entry, ByteBuffer buf) {
+    /* the checksums cover the container but not its trailing version */
+    int length = buf.limit() >= 5 ? buf.getInt(1) : -1;
+    int containerLength = 5 + (buf.limit() >= 5 && buf.get(0) != Container.COMPRESSION_NONE ? 4 : 0) + length;
+    if (length < 0 || containerLength > buf.limit())
+      return new Mismatch(type, file, Mismatch.Kind.CORRUPT, "container is truncated");
+
+    byte[] whirlpool = (table.getFlags() & ReferenceTable.FLAG_WHIRLPOOL) != 0 ? new byte[64] : null;
+    int crc = ByteBufferUtils.getChecksums(buf, 0, containerLength, whirlpool);
+
+    if (crc != entry.getCrc())
+      return new Mismatch(type, file, Mismatch.Kind.CRC, String.format("expected %08x but was %08x", entry.getCrc(), crc));
+    if (whirlpool != null && !Arrays.equals(whirlpool, entry.getWhirlpool()))
+      return new Mismatch(type, file, Mismatch.Kind.WHIRLPOOL, "whirlpool digest differs");
+
+    return null;
+  }
+
+  /**
+   * Waits for a task to complete, rethrowing the {@link IOException} it
+   * failed with, if any.
+   *
+   * @param task The task.
+   * @return The result of the task.
+   * @throws IOException if the task failed with an I/O error.
+   */
+  static <T> T join(ForkJoinTask<T> task) throws IOException {
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException)
+        throw (IOException) cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      if (cause instanceof Error)
+        throw (Error) cause;
+      throw new IOException(cause);
+    }
+  }
+
+  /**
+   * Starts a {@link Batch} of writes to files of the specified type.
+   *
+   * @param type The type of file.
+   * @return The batch.
+   * @throws IOException if an I/O error occurs.
+   */
+  public Batch beginBatch(int type) throws IOException {
+    /* we don't want people reading/manipulating these manually */
+    if (type == 255)
+      throw new IOException("Reference tables can only be modified with the low level FileStore API!");
+
+    Lock lock = locks[type & 0xFF].readLock();
+    lock.lock();
+    try {
+      Container tableContainer = Container.decode(store.read(255, type));
+      return new Batch(type, tableContainer.getType(), ReferenceTable.decode(tableContainer.getData()));
+    } finally {
+      lock.unlock();
+    }
   }
 
   /**
@@ -110,12 +834,28 @@ public final class Cache implements Closeable {
    * @throws IOException if an I/O error occurred.
    */
   public Container read(int type, int file) throws IOException {
-		/* we don't want people reading/manipulating these manually */
-    if (type == 255)
-      throw new IOException("Reference tables can only be read with the low level FileStore API!");
+    Lock lock = locks[type & 0xFF].readLock();
+    lock.lock();
+    try {
+      /* we don't want people reading/manipulating these manually */
+      if (type == 255)
+        throw new IOException("Reference tables can only be read with the low level FileStore API!");
+
+      /* check if the container has already been decoded */
+      if (containers != null) {
+        Container container = containers.get(type, file);
+        if (container != null)
+          return container;
+      }
 
-		/* delegate the call to the file store then decode the container */
-    return Container.decode(store.read(type, file));
+      /* delegate the call to the file store then decode the container */
+      Container container = Container.decode(store.read(type, file));
+      if (containers != null)
+        containers.put(type, file, container);
+      return container;
+    } finally {
+      lock.unlock();
+    }
   }
 
   /**
@@ -128,57 +868,129 @@ public final class Cache implements Closeable {
    * @throws IOException if an I/O error occurs.
    */
   public void write(int type, int file, Container container) throws IOException {
-		/* we don't want people reading/manipulating these manually */
-    if (type == 255)
-      throw new IOException("Reference tables can only be modified with the low level FileStore API!");
-
-		/* increment the container's version */
-    container.setVersion(container.getVersion() + 1);
+    Lock lock = locks[type & 0xFF].writeLock();
+    lock.lock();
+    try {
+      /* we don't want people reading/manipulating these manually */
+      if (type == 255)
+        throw new IOException("Reference tables can only be modified with the low level FileStore API!");
 
-		/* decode the reference table for this index */
-    Container tableContainer = Container.decode(store.read(255, type));
-    ReferenceTable table = ReferenceTable.decode(tableContainer.getData());
+      /* decode the reference table for this index */
+      Container tableContainer = Container.decode(store.read(255, type));
+      ReferenceTable table = ReferenceTable.decode(tableContainer.getData());
 
-		/* grab the bytes we need for the checksum */
-    ByteBuffer buffer = container.encode();
-    byte[] bytes = new byte[buffer.limit() - 2]; // last two bytes are the version and shouldn't be included
-    buffer.mark();
-    try {
-      buffer.position(0);
-      buffer.get(bytes, 0, bytes.length);
+      /* save the file, then the reference table describing it */
+      writeFiles(type, Collections.singletonMap(file, encode(file, container, table)), tableContainer.getType(), table);
     } finally {
-      buffer.reset();
+      lock.unlock();
     }
 
-		/* calculate the new CRC checksum */
-    CRC32 crc = new CRC32();
-    crc.update(bytes, 0, bytes.length);
+    fireFilesWritten(type, Collections.singleton(file));
+  }
+
+  /**
+   * Increments the version of a {@link Container}, encodes it and updates
+   * the version and checksums of its entry in the specified
+   * {@link ReferenceTable}.
+   *
+   * @param file      The file id.
+   * @param container The {@link Container}.
+   * @param table     The {@link ReferenceTable} of the file's type.
+   * @return The encoded container.
+   * @throws IOException if an I/O error occurs.
+   */
+  private static ByteBuffer encode(int file, Container container, ReferenceTable table) throws IOException {
+    /* increment the container's version */
+    container.setVersion(container.getVersion() + 1);
+
+    /* grab the bytes we need for the checksum */
+    ByteBuffer buffer = container.encode();
+
+    /*
+     * calculate the new CRC checksum and, if we need it, the whirlpool digest
+     * in one pass - the last two bytes are the version and shouldn't be
+     * included
+     */
+    byte[] whirlpool = null;
+    if ((table.getFlags() & ReferenceTable.FLAG_WHIRLPOOL) != 0)
+      whirlpool = new byte[64];
 
-		/* update the version and checksum for this file */
+    int crc = ByteBufferUtils.getChecksums(buffer, 0, buffer.limit() - 2, whirlpool);
+
+    /* update the version and checksum for this file */
     ReferenceTable.Entry entry = table.getEntry(file);
     if (entry == null) {
-			/* create a new entry for the file */
+      /* create a new entry for the file */
       entry = new ReferenceTable.Entry();
       table.putEntry(file, entry);
     }
     entry.setVersion(container.getVersion());
-    entry.setCrc((int) crc.getValue());
+    entry.setCrc(crc);
 
-		/* calculate and update the whirlpool digest if we need to */
-    if ((table.getFlags() & ReferenceTable.FLAG_WHIRLPOOL) != 0) {
-      byte[] whirlpool = Whirlpool.whirlpool(bytes, 0, bytes.length);
+    /* update the whirlpool digest if we need to */
+    if (whirlpool != null)
       entry.setWhirlpool(whirlpool);
-    }
 
-		/* update the reference table version */
+    return buffer;
+  }
+
+  /**
+   * Saves encoded containers of a type, then increments the version of the
+   * type's {@link ReferenceTable} and saves it too. The files and the table
+   * are written as a single {@link FileStore.Group}, with the table last, so
+   * the table never refers to a file which does not exist yet and a
+   * journaled store never replays one without the other. The caller must
+   * hold the write lock of the type.
+   *
+   * @param type        The type of file.
+   * @param files       The encoded containers, by file id.
+   * @param compression The compression type of the table's container.
+   * @param table       The {@link ReferenceTable}, with the entries of the
+   *                    files already updated.
+   * @throws IOException if an I/O error occurs.
+   */
+  private void writeFiles(int type, Map<Integer, ByteBuffer> files, int compression, ReferenceTable table) throws IOException {
     table.setVersion(table.getVersion() + 1);
 
-		/* save the reference table */
-    tableContainer = new Container(tableContainer.getType(), table.encode());
-    store.write(255, type, tableContainer.encode());
+    Container tableContainer = new Container(compression, table.encode());
+    ByteBuffer buffer = tableContainer.encode();
+
+    FileStore.Group group = store.beginGroup();
+    for (Map.Entry<Integer, ByteBuffer> file : files.entrySet())
+      group.write(type, file.getKey(), file.getValue());
+    group.write(255, type, buffer.duplicate());
+    group.commit();
+
+    /* remove any stale copies of the files from the container cache */
+    if (containers != null) {
+      for (int file : files.keySet())
+        containers.invalidate(type, file);
+    }
+
+    /* the table won't be modified again, so it can replace the cached one */
+    tables.set(type, table);
 
-		/* save the file itself */
-    store.write(type, file, buffer);
+    updateChecksumTable(type, buffer, table.getVersion());
+  }
+
+  /**
+   * Gets the decoded {@link ReferenceTable} of the specified type, decoding
+   * it and keeping it in memory if it has not been decoded already. The
+   * returned table is shared between threads and must not be modified: a
+   * writer should decode its own copy instead. The caller must hold the read
+   * or write lock of the type.
+   *
+   * @param type The type.
+   * @return The {@link ReferenceTable}.
+   * @throws IOException if an I/O error occurs.
+   */
+  private ReferenceTable getReferenceTable(int type) throws IOException {
+    ReferenceTable table = tables.get(type);
+    if (table == null) {
+      table = ReferenceTable.decode(Container.decode(store.read(255, type)).getData());
+      tables.set(type, table);
+    }
+    return table;
   }
 
   /**
@@ -191,19 +1003,24 @@ public final class Cache implements Closeable {
    * @throws IOException if an I/O error occurred.
    */
   public ByteBuffer read(int type, int file, int member) throws IOException {
-		/* grab the container and the reference table */
-    Container container = read(type, file);
-    Container tableContainer = Container.decode(store.read(255, type));
-    ReferenceTable table = ReferenceTable.decode(tableContainer.getData());
+    Lock lock = locks[type & 0xFF].readLock();
+    lock.lock();
+    try {
+      /* grab the container and the reference table */
+      Container container = read(type, file);
+      ReferenceTable table = getReferenceTable(type);
 
-		/* check if the file/member are valid */
-    ReferenceTable.Entry entry = table.getEntry(file);
-    if (entry == null || member < 0 || member >= entry.capacity())
-      throw new FileNotFoundException();
+      /* check if the file/member are valid */
+      ReferenceTable.Entry entry = table.getEntry(file);
+      if (entry == null || member < 0 || member >= entry.capacity())
+        throw new FileNotFoundException();
 
-		/* extract the entry from the archive */
-    Archive archive = Archive.decode(container.getData(), entry.capacity());
-    return archive.getEntry(member);
+      /* extract the entry from the archive */
+      Archive archive = Archive.decode(container.getData(), entry.capacity());
+      return archive.getEntry(member);
+    } finally {
+      lock.unlock();
+    }
   }
 
   /**
@@ -216,68 +1033,72 @@ public final class Cache implements Closeable {
    * @throws IOException if an I/O error occurs.
    */
   public void write(int type, int file, int member, ByteBuffer data) throws IOException {
-		/* grab the reference table */
-    Container tableContainer = Container.decode(store.read(255, type));
-    ReferenceTable table = ReferenceTable.decode(tableContainer.getData());
+    Lock lock = locks[type & 0xFF].writeLock();
+    lock.lock();
+    try {
+      /* grab the reference table */
+      Container tableContainer = Container.decode(store.read(255, type));
+      ReferenceTable table = ReferenceTable.decode(tableContainer.getData());
 
-		/* create a new entry if necessary */
-    ReferenceTable.Entry entry = table.getEntry(file);
-    int oldArchiveSize = -1;
-    if (entry == null) {
-      entry = new ReferenceTable.Entry();
-      table.putEntry(file, entry);
-    } else {
-      oldArchiveSize = entry.capacity();
-    }
+      /* create a new entry if necessary */
+      ReferenceTable.Entry entry = table.getEntry(file);
+      int oldArchiveSize = -1;
+      if (entry == null) {
+        entry = new ReferenceTable.Entry();
+        table.putEntry(file, entry);
+      } else {
+        oldArchiveSize = entry.capacity();
+      }
 
-		/* add a child entry if one does not exist */
-    ReferenceTable.ChildEntry child = entry.getEntry(member);
-    if (child == null) {
-      child = new ReferenceTable.ChildEntry();
-      entry.putEntry(member, child);
-    }
+      /* add a child entry if one does not exist */
+      ReferenceTable.ChildEntry child = entry.getEntry(member);
+      if (child == null) {
+        child = new ReferenceTable.ChildEntry();
+        entry.putEntry(member, child);
+      }
 
-		/* extract the current archive into memory so we can modify it */
-    Archive archive;
-    int containerType, containerVersion;
-    if (file < store.getFileCount(type) && oldArchiveSize != -1) {
-      Container container = read(type, file);
-      containerType = container.getType();
-      containerVersion = container.getVersion();
-      archive = Archive.decode(container.getData(), oldArchiveSize);
-    } else {
-      containerType = Container.COMPRESSION_GZIP;
-      containerVersion = 1;
-      archive = new Archive(member + 1);
-    }
+      /* extract the current archive into memory so we can modify it */
+      Archive archive;
+      int containerType, containerVersion;
+      if (file < store.getFileCount(type) && oldArchiveSize != -1) {
+        Container container = read(type, file);
+        containerType = container.getType();
+        containerVersion = container.getVersion();
+        archive = Archive.decode(container.getData(), oldArchiveSize);
+      } else {
+        containerType = Container.COMPRESSION_GZIP;
+        containerVersion = 1;
+        archive = new Archive(member + 1);
+      }
 
-		/* expand the archive if it is not large enough */
-    if (member >= archive.size()) {
-      Archive newArchive = new Archive(member + 1);
-      for (int id = 0; id < archive.size(); id++) {
-        newArchive.putEntry(id, archive.getEntry(id));
+      /* expand the archive if it is not large enough */
+      if (member >= archive.size()) {
+        Archive newArchive = new Archive(member + 1);
+        for (int id = 0; id < archive.size(); id++) {
+          newArchive.putEntry(id, archive.getEntry(id));
+        }
+        archive = newArchive;
       }
-      archive = newArchive;
-    }
 
-		/* put the member into the archive */
-    archive.putEntry(member, data);
+      /* put the member into the archive */
+      archive.putEntry(member, data);
 
-		/* create 'dummy' entries */
-    for (int id = 0; id < archive.size(); id++) {
-      if (archive.getEntry(id) == null) {
-        entry.putEntry(id, new ReferenceTable.ChildEntry());
-        archive.putEntry(id, ByteBuffer.allocate(1));
+      /* create 'dummy' entries */
+      for (int id = 0; id < archive.size(); id++) {
+        if (archive.getEntry(id) == null) {
+          entry.putEntry(id, new ReferenceTable.ChildEntry());
+          archive.putEntry(id, ByteBuffer.allocate(1));
+        }
       }
-    }
 
-		/* write the reference table out again */
-    tableContainer = new Container(tableContainer.getType(), table.encode());
-    store.write(255, type, tableContainer.encode());
+      /* write the archive back to the cache, then the reference table */
+      Container container = new Container(containerType, archive.encode(), containerVersion);
+      writeFiles(type, Collections.singletonMap(file, encode(file, container, table)), tableContainer.getType(), table);
+    } finally {
+      lock.unlock();
+    }
 
-		/* and write the archive back to memory */
-    Container container = new Container(containerType, archive.encode(), containerVersion);
-    write(type, file, container);
+    fireFilesWritten(type, Collections.singleton(file));
   }
 
   @Override
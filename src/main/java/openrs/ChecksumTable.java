@@ -7,6 +7,7 @@ import java.math.BigInteger;
 import java.nio.ByteBuffer;
 
 import openrs.util.crypto.Rsa;
+import openrs.util.crypto.RsaPrivateKey;
 import openrs.util.crypto.Whirlpool;
 
 /**
@@ -219,6 +220,25 @@ public class ChecksumTable {
    * @throws IOException if an I/O error occurs.
    */
   public ByteBuffer encode(boolean whirlpool, BigInteger modulus, BigInteger privateKey) throws IOException {
+    RsaPrivateKey key = null;
+    if (modulus != null && privateKey != null)
+      key = new RsaPrivateKey(modulus, privateKey);
+
+    return encode(whirlpool, key);
+  }
+
+  /**
+   * Encodes this {@link ChecksumTable} and encrypts the final whirlpool hash
+   * with the private key, which is faster if the key carries its CRT
+   * parameters.
+   *
+   * @param whirlpool If whirlpool digests should be encoded.
+   * @param key       The private key, or {@code null} to leave the hash
+   *                  unencrypted.
+   * @return The encoded {@link ByteBuffer}.
+   * @throws IOException if an I/O error occurs.
+   */
+  public ByteBuffer encode(boolean whirlpool, RsaPrivateKey key) throws IOException {
     ByteArrayOutputStream bout = new ByteArrayOutputStream();
     DataOutputStream os = new DataOutputStream(bout);
     try {
@@ -244,8 +264,8 @@ public class ChecksumTable {
         temp.put((byte) 0);
         temp.flip();
 
-        if (modulus != null && privateKey != null) {
-          temp = Rsa.crypt(temp, modulus, privateKey);
+        if (key != null) {
+          temp = Rsa.crypt(temp, key);
         }
 
         bytes = new byte[temp.limit()];
@@ -0,0 +1,216 @@
+package openrs;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link ContainerCache} holds recently used, decompressed
+ * {@link Container}s in memory, so that hot files do not have to be read
+ * from the {@link FileStore} and decompressed every time they are requested.
+ * The cache is bounded by the total size of the decompressed data it holds,
+ * and the least recently used containers are evicted first.
+ * <p>
+ * A container cache is safe for use by multiple threads.
+ */
+public final class ContainerCache {
+
+  /**
+   * The maximum number of bytes of decompressed data to hold.
+   */
+  private final long capacity;
+
+  /**
+   * The cached containers, keyed by type and file id, in access order.
+   */
+  private final LinkedHashMap<Long, Container> containers = new LinkedHashMap<Long, Container>(16, 0.75f, true);
+
+  /**
+   * The number of bytes of decompressed data currently held.
+   */
+  private long size;
+
+  /**
+   * The number of lookups which found a cached container.
+   */
+  private long hits;
+
+  /**
+   * The number of lookups which did not find a cached container.
+   */
+  private long misses;
+
+  /**
+   * The number of containers evicted to stay within the capacity.
+   */
+  private long evictions;
+
+  /**
+   * Creates a new container cache.
+   *
+   * @param capacity The maximum number of bytes of decompressed data to hold.
+   */
+  public ContainerCache(long capacity) {
+    if (capacity < 0)
+      throw new IllegalArgumentException();
+
+    this.capacity = capacity;
+  }
+
+  /**
+   * Gets a cached container.
+   *
+   * @param type The type of the file.
+   * @param file The file id.
+   * @return A copy of the cached container, or {@code null} if the file is
+   * not cached.
+   */
+  public synchronized Container get(int type, int file) {
+    Container container = containers.get(key(type, file));
+    if (container == null) {
+      misses++;
+      return null;
+    }
+
+    hits++;
+    return copy(container);
+  }
+
+  /**
+   * Caches a container, evicting the least recently used containers if
+   * necessary. Containers larger than the capacity are not cached.
+   *
+   * @param type      The type of the file.
+   * @param file      The file id.
+   * @param container The container.
+   */
+  public synchronized void put(int type, int file, Container container) {
+    int weight = weigh(container);
+    if (weight > capacity)
+      return;
+
+    Container previous = containers.put(key(type, file), copy(container));
+    if (previous != null)
+      size -= weigh(previous);
+    size += weight;
+
+    /* evict the least recently used containers until we fit */
+    Iterator<Container> it = containers.values().iterator();
+    while (size > capacity && it.hasNext()) {
+      size -= weigh(it.next());
+      it.remove();
+      evictions++;
+    }
+  }
+
+  /**
+   * Removes a container from the cache, e.g. because the file has been
+   * written.
+   *
+   * @param type The type of the file.
+   * @param file The file id.
+   */
+  public synchronized void invalidate(int type, int file) {
+    Container previous = containers.remove(key(type, file));
+    if (previous != null)
+      size -= weigh(previous);
+  }
+
+  /**
+   * Removes every container from the cache.
+   */
+  public synchronized void clear() {
+    containers.clear();
+    size = 0;
+  }
+
+  /**
+   * Gets the maximum number of bytes of decompressed data this cache holds.
+   *
+   * @return The capacity in bytes.
+   */
+  public long getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Gets the number of bytes of decompressed data currently held.
+   *
+   * @return The size in bytes.
+   */
+  public synchronized long getSize() {
+    return size;
+  }
+
+  /**
+   * Gets the number of containers currently held.
+   *
+   * @return The number of containers.
+   */
+  public synchronized int getCount() {
+    return containers.size();
+  }
+
+  /**
+   * Gets the number of lookups which found a cached container.
+   *
+   * @return The number of hits.
+   */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /**
+   * Gets the number of lookups which did not find a cached container.
+   *
+   * @return The number of misses.
+   */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /**
+   * Gets the number of containers evicted to stay within the capacity.
+   *
+   * @return The number of evictions.
+   */
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  /**
+   * Creates the key of a file.
+   *
+   * @param type The type of the file.
+   * @param file The file id.
+   * @return The key.
+   */
+  private static long key(int type, int file) {
+    return ((long) type << 32) | (file & 0xFFFFFFFFL);
+  }
+
+  /**
+   * Calculates the weight of a container, which is the size of its
+   * decompressed data.
+   *
+   * @param container The container.
+   * @return The weight in bytes.
+   */
+  private static int weigh(Container container) {
+    return container.getData().limit();
+  }
+
+  /**
+   * Copies a container, so that changes to its type or version made by the
+   * caller are not seen by the cache. The data itself is shared, as
+   * {@link Container#getData()} only exposes read only views of it.
+   *
+   * @param container The container.
+   * @return The copy.
+   */
+  private static Container copy(Container container) {
+    int version = container.isVersioned() ? container.getVersion() : -1;
+    return new Container(container.getType(), container.getData(), version);
+  }
+
+}
@@ -1,26 +1,168 @@
 package openrs;
 
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import openrs.util.ByteBufferUtils;
 import openrs.util.FileChannelUtils;
 
 /**
  * A file store holds multiple files inside a "virtual" file system made up of
  * several index files and a single data file.
+ * <p>
+ * A file store is safe for use by multiple threads. Reads only use positional
+ * I/O (or the mapped data file) and run in parallel, while writes are
+ * serialized per type and block readers of that type until the whole chain
+ * and its index have been written. Closing the store must not race with
+ * other operations.
+ * <p>
+ * Writes can optionally be recorded in a {@link Journal} before they are
+ * applied, so that a crash part way through a write does not corrupt the
+ * store. Writes which depend on each other can be made as a {@link Group},
+ * which is journaled and replayed as a whole.
  *
  * @author Graham
  * @author `Discardedx2
  */
 public final class FileStore implements Closeable {
 
+  /**
+   * A {@link Group} stages writes to several files and then saves them
+   * together. If the store is journaled, the writes are appended to the
+   * journal as a single group, so after a crash either all of them are
+   * replayed or none are, and an automatic flush never applies part of a
+   * group. Readers of the types involved see either none of the writes or
+   * all of them.
+   * <p>
+   * A group is not thread safe.
+   */
+  public final class Group {
+
+    /**
+     * The contents of each file waiting to be saved, keyed by type and id and
+     * kept in the order they were staged.
+     */
+    private final Map<Long, ByteBuffer> writes = new LinkedHashMap<Long, ByteBuffer>();
+
+    /**
+     * A flag indicating if this group has been committed.
+     */
+    private boolean committed;
+
+    /**
+     * Creates a new group.
+     */
+    private Group() {
+
+    }
+
+    /**
+     * Stages a file to be written when this group is committed. Writing the
+     * same file twice replaces the earlier write, but keeps its place in the
+     * order.
+     *
+     * @param type The type of the file.
+     * @param id   The id of the file.
+     * @param data A {@link ByteBuffer} containing the contents of the file.
+     * @throws IOException if an I/O error occurs.
+     */
+    public void write(int type, int id, ByteBuffer data) throws IOException {
+      if (committed)
+        throw new IllegalStateException("Group has already been committed");
+
+      /* check the type exists now, rather than when the group is committed */
+      slot(type);
+      if (id < 0)
+        throw new IOException();
+
+      writes.put(Journal.key(type, id), data);
+    }
+
+    /**
+     * Saves every staged file, in the order they were staged.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public void commit() throws IOException {
+      if (committed)
+        throw new IllegalStateException("Group has already been committed");
+
+      /* lock the slots in slot order, like lockAll(), so we can't deadlock */
+      boolean[] slots = new boolean[locks.length];
+      for (long key : writes.keySet())
+        slots[slot((int) (key >>> 32))] = true;
+
+      for (int slot = 0; slot < slots.length; slot++) {
+        if (slots[slot])
+          locks[slot].writeLock().lock();
+      }
+
+      try {
+        if (journal != null) {
+          journal.append(writes);
+        } else {
+          for (Map.Entry<Long, ByteBuffer> write : writes.entrySet()) {
+            int type = (int) (write.getKey() >>> 32);
+            writeFile(slot(type), type, (int) (long) write.getKey(), write.getValue());
+          }
+        }
+        committed = true;
+      } finally {
+        for (int slot = slots.length - 1; slot >= 0; slot--) {
+          if (slots[slot])
+            locks[slot].writeLock().unlock();
+        }
+      }
+
+      /* this is done without holding any lock, as flushing needs all of them */
+      if (journal != null && journal.getSize() >= MAX_JOURNAL_SIZE)
+        flush();
+    }
+
+  }
+
+  /**
+   * The maximum number of contiguous sectors fetched by a single read when
+   * the data file is not mapped.
+   */
+  private static final int MAX_RUN_SECTORS = 64;
+
+  /**
+   * The size of each mapped region of the data file. A single mapping is
+   * limited to 2 GB, so larger data files are mapped as several regions. The
+   * size is a whole number of sectors, so no sector straddles two regions.
+   */
+  private static final int MAP_REGION_SIZE = Integer.MAX_VALUE / Sector.SIZE * Sector.SIZE;
+
+  /**
+   * The name of the journal file, relative to the directory of the store.
+   */
+  private static final String JOURNAL_FILE = "main_file_cache.jnl";
+
+  /**
+   * The size a journal may grow to before it is automatically flushed.
+   */
+  private static final long MAX_JOURNAL_SIZE = 32 * 1024 * 1024;
+
   /**
    * Opens the file store stored in the specified directory.
    *
@@ -28,11 +170,26 @@ public final class FileStore implements Closeable {
    * @return The file store.
    * @throws FileNotFoundException if any of the {@code main_file_cache.*}
    *                               files could not be found.
+   * @throws IOException           if the index files could not be read.
    */
-  public static FileStore open(String root) throws FileNotFoundException {
+  public static FileStore open(String root) throws IOException {
     return open(new File(root));
   }
 
+  /**
+   * Opens the file store stored in the specified directory.
+   *
+   * @param root   The directory containing the index and data files.
+   * @param mapped A flag indicating if the files should be memory-mapped.
+   * @return The file store.
+   * @throws FileNotFoundException if any of the {@code main_file_cache.*}
+   *                               files could not be found.
+   * @throws IOException           if the files could not be read or mapped.
+   */
+  public static FileStore open(String root, boolean mapped) throws IOException {
+    return open(new File(root), mapped);
+  }
+
   /**
    * Opens the file store stored in the specified directory.
    *
@@ -40,8 +197,9 @@ public final class FileStore implements Closeable {
    * @return The file store.
    * @throws FileNotFoundException if any of the {@code main_file_cache.*}
    *                               files could not be found.
+   * @throws IOException           if the index files could not be read.
    */
-  public static FileStore open(File root) throws FileNotFoundException {
+  public static FileStore open(File root) throws IOException {
     File data = new File(root, "main_file_cache.dat2");
     if (!data.exists())
       throw new FileNotFoundException();
@@ -70,7 +228,60 @@ public final class FileStore implements Closeable {
     raf = new RandomAccessFile(meta, "rw");
     FileChannel metaChannel = raf.getChannel();
 
-    return new FileStore(dataChannel, indexChannels.toArray(new FileChannel[0]), metaChannel);
+    FileStore store = new FileStore(dataChannel, indexChannels.toArray(new FileChannel[0]), metaChannel);
+
+    /* replay any writes which were journaled but not applied before a crash */
+    File journal = new File(root, JOURNAL_FILE);
+    if (journal.exists()) {
+      Journal pending = Journal.open(journal);
+      try {
+        store.apply(pending);
+      } finally {
+        pending.close();
+      }
+    }
+
+    return store;
+  }
+
+  /**
+   * Opens the file store stored in the specified directory.
+   *
+   * @param root   The directory containing the index and data files.
+   * @param mapped A flag indicating if the files should be memory-mapped.
+   * @return The file store.
+   * @throws FileNotFoundException if any of the {@code main_file_cache.*}
+   *                               files could not be found.
+   * @throws IOException           if the files could not be read or mapped.
+   */
+  public static FileStore open(File root, boolean mapped) throws IOException {
+    return open(root, mapped, false);
+  }
+
+  /**
+   * Opens the file store stored in the specified directory.
+   * <p>
+   * If the store is journaled, writes are appended to a journal beside the
+   * data file instead of being applied immediately. The journal is only
+   * forced to disk when {@link #sync()} or {@link #flush()} is called, or
+   * when it grows large enough to be flushed automatically, so bulk imports
+   * do not pay for an fsync per file but can always be recovered.
+   *
+   * @param root      The directory containing the index and data files.
+   * @param mapped    A flag indicating if the files should be memory-mapped.
+   * @param journaled A flag indicating if writes should be journaled.
+   * @return The file store.
+   * @throws FileNotFoundException if any of the {@code main_file_cache.*}
+   *                               files could not be found.
+   * @throws IOException           if the files could not be read or mapped.
+   */
+  public static FileStore open(File root, boolean mapped, boolean journaled) throws IOException {
+    FileStore store = open(root);
+    if (mapped)
+      store.map();
+    if (journaled)
+      store.journal = Journal.open(new File(root, JOURNAL_FILE));
+    return store;
   }
 
   /**
@@ -88,17 +299,165 @@ public final class FileStore implements Closeable {
    */
   private final FileChannel metaChannel;
 
+  /**
+   * The mapped regions of the data file, each {@link #MAP_REGION_SIZE} bytes
+   * long apart from the last, or {@code null} if the store is not mapped.
+   */
+  private volatile MappedByteBuffer[] dataMap;
+
+  /**
+   * The read/write locks guarding each type slot. Readers of a type proceed
+   * in parallel, while writers are serialized and exclude readers so that a
+   * partially written sector chain is never observed.
+   */
+  private final ReadWriteLock[] locks;
+
+  /**
+   * The lock guarding {@link #sectorCount} and {@link #usedSectors}.
+   */
+  private final Object allocationLock = new Object();
+
+  /**
+   * The number of sectors in the data file, including those which have been
+   * reserved by a writer but not yet written.
+   */
+  private int sectorCount;
+
+  /**
+   * The sectors which are part of a chain, or {@code null} if the free sector
+   * map has not been built.
+   */
+  private BitSet usedSectors;
+
+  /**
+   * The journal recording pending writes, or {@code null} if writes are
+   * applied directly.
+   */
+  private Journal journal;
+
+  /**
+   * The size of every file, indexed by type slot and then file id. The
+   * 'meta' index occupies the last slot.
+   */
+  private final int[][] sizes;
+
+  /**
+   * The first sector of every file, laid out in the same way as
+   * {@link #sizes}.
+   */
+  private final int[][] sectors;
+
   /**
    * Creates a new file store.
    *
    * @param data    The data file.
    * @param indexes The index files.
    * @param meta    The 'meta' index file.
+   * @throws IOException if the index files could not be read.
    */
-  public FileStore(FileChannel data, FileChannel[] indexes, FileChannel meta) {
+  public FileStore(FileChannel data, FileChannel[] indexes, FileChannel meta) throws IOException {
     this.dataChannel = data;
     this.indexChannels = indexes;
     this.metaChannel = meta;
+    this.locks = new ReadWriteLock[indexes.length + 1];
+    this.sizes = new int[indexes.length + 1][];
+    this.sectors = new int[indexes.length + 1][];
+
+    /* sector 0 is never used, so a chain can be terminated with a zero pointer */
+    this.sectorCount = (int) Math.max((data.size() + Sector.SIZE - 1) / Sector.SIZE, 1);
+
+    for (int slot = 0; slot <= indexes.length; slot++) {
+      locks[slot] = new ReentrantReadWriteLock();
+      load(slot, slot == indexes.length ? meta : indexes[slot]);
+    }
+  }
+
+  /**
+   * Loads every {@link Index} in the specified index file into the in-memory
+   * size and sector tables.
+   *
+   * @param slot    The type slot.
+   * @param channel The index file.
+   * @throws IOException if an I/O error occurs.
+   */
+  private void load(int slot, FileChannel channel) throws IOException {
+    int count = (int) (channel.size() / Index.SIZE);
+    ByteBuffer buf = ByteBuffer.allocate(count * Index.SIZE);
+    FileChannelUtils.readFully(channel, buf, 0);
+    buf.flip();
+
+    int[] sizes = new int[count];
+    int[] sectors = new int[count];
+    for (int id = 0; id < count; id++) {
+      sizes[id] = ByteBufferUtils.getTriByte(buf);
+      sectors[id] = ByteBufferUtils.getTriByte(buf);
+    }
+
+    this.sizes[slot] = sizes;
+    this.sectors[slot] = sectors;
+  }
+
+  /**
+   * Gets the slot in the in-memory index tables used by the specified type.
+   *
+   * @param type The type.
+   * @return The slot.
+   * @throws FileNotFoundException if there is no index file for the type.
+   */
+  private int slot(int type) throws FileNotFoundException {
+    if (type == 255)
+      return indexChannels.length;
+    if (type < 0 || type >= indexChannels.length)
+      throw new FileNotFoundException();
+    return type;
+  }
+
+  /**
+   * Updates the in-memory index tables after an {@link Index} has been
+   * written, growing them if the file id lies beyond the current end.
+   *
+   * @param slot  The type slot.
+   * @param id    The file id.
+   * @param index The index.
+   */
+  private void update(int slot, int id, Index index) {
+    if (id >= sizes[slot].length) {
+      sizes[slot] = Arrays.copyOf(sizes[slot], id + 1);
+      sectors[slot] = Arrays.copyOf(sectors[slot], id + 1);
+    }
+
+    sizes[slot][id] = index.getSize();
+    sectors[slot][id] = index.getSector();
+  }
+
+  /**
+   * Memory-maps the data file so that reads are served directly from the
+   * mapped regions instead of issuing a positional read for every sector.
+   * Data files larger than 2 GB are mapped as several regions, as a single
+   * mapping cannot be larger than that. Only the part which exists at the time this method is called is
+   * mapped: anything beyond it (e.g. a file which was appended after
+   * mapping) is still read through the underlying channel. The index files
+   * are already held in memory, so they do not need to be mapped.
+   *
+   * @throws IOException if an I/O error occurs.
+   */
+  public void map() throws IOException {
+    long size = dataChannel.size();
+    MappedByteBuffer[] regions = new MappedByteBuffer[(int) ((size + MAP_REGION_SIZE - 1) / MAP_REGION_SIZE)];
+    for (int i = 0; i < regions.length; i++) {
+      long position = (long) i * MAP_REGION_SIZE;
+      regions[i] = dataChannel.map(MapMode.READ_ONLY, position, Math.min(size - position, MAP_REGION_SIZE));
+    }
+    dataMap = regions;
+  }
+
+  /**
+   * Checks if the data file is memory-mapped.
+   *
+   * @return {@code true} if so, {@code false} if not.
+   */
+  public boolean isMapped() {
+    return dataMap != null;
   }
 
   /**
@@ -119,16 +478,25 @@ public final class FileStore implements Closeable {
    * @throws IOException if an I/O error occurs.
    */
   public int getFileCount(int type) throws IOException {
-    if ((type < 0 || type >= indexChannels.length) && type != 255)
-      throw new FileNotFoundException();
+    int slot = slot(type);
 
-    if (type == 255)
-      return (int) (metaChannel.size() / Index.SIZE);
-    return (int) (indexChannels[type].size() / Index.SIZE);
+    Lock lock = locks[slot].readLock();
+    lock.lock();
+    try {
+      if (journal != null)
+        return Math.max(sizes[slot].length, journal.getFileCount(type));
+
+      return sizes[slot].length;
+    } finally {
+      lock.unlock();
+    }
   }
 
   /**
-   * Writes a file.
+   * Writes a file. The sectors used by the existing version of the file, if
+   * any, are reused in place. Any extra sectors are taken from the free
+   * sector map if {@link #scanFreeSectors()} has been called, or are
+   * appended to the end of the data file otherwise.
    *
    * @param type The type of the file.
    * @param id   The id of the file.
@@ -136,106 +504,518 @@ public final class FileStore implements Closeable {
    * @throws IOException if an I/O error occurs.
    */
   public void write(int type, int id, ByteBuffer data) throws IOException {
-    data.mark();
-    if (!write(type, id, data, true)) {
-      data.reset();
-      write(type, id, data, false);
+    int slot = slot(type);
+    if (id < 0)
+      throw new IOException();
+
+    Lock lock = locks[slot].writeLock();
+    lock.lock();
+    try {
+      if (journal != null)
+        journal.append(type, id, data);
+      else
+        writeFile(slot, type, id, data);
+    } finally {
+      lock.unlock();
     }
+
+    /* this is done without holding any lock, as flushing needs all of them */
+    if (journal != null && journal.getSize() >= MAX_JOURNAL_SIZE)
+      flush();
   }
 
   /**
-   * Writes a file.
+   * Starts a {@link Group} of writes which are saved together.
    *
-   * @param type      The type of the file.
-   * @param id        The id of the file.
-   * @param data      A {@link ByteBuffer} containing the contents of the file.
-   * @param overwrite A flag indicating if the existing file should be
-   *                  overwritten.
-   * @return A flag indicating if the file was written successfully.
+   * @return The group.
+   */
+  public Group beginGroup() {
+    return new Group();
+  }
+
+  /**
+   * Writes a file directly to the data and index files. The caller must hold
+   * the write lock of the file's type slot.
+   *
+   * @param slot The type slot.
+   * @param type The type of the file.
+   * @param id   The id of the file.
+   * @param data A {@link ByteBuffer} containing the contents of the file.
    * @throws IOException if an I/O error occurs.
    */
-  private boolean write(int type, int id, ByteBuffer data, boolean overwrite) throws IOException {
-    if ((type < 0 || type >= indexChannels.length) && type != 255)
-      throw new FileNotFoundException();
+  private void writeFile(int slot, int type, int id, ByteBuffer data) throws IOException {
+    /* find the chain of the existing file so its sectors can be reused */
+    int[] old = new int[0];
+    if (id < sizes[slot].length)
+      old = getChain(type, id, sizes[slot][id], sectors[slot][id]);
 
-    FileChannel indexChannel = type == 255 ? metaChannel : indexChannels[type];
+    /* every file occupies at least one sector, even if it is empty */
+    int size = data.remaining();
+    int count = Math.max((size + Sector.DATA_SIZE - 1) / Sector.DATA_SIZE, 1);
 
-    int nextSector = 0;
-    long ptr = id * Index.SIZE;
-    if (overwrite) {
-      if (ptr < 0)
-        throw new IOException();
-      else if (ptr >= indexChannel.size())
-        return false;
-
-      ByteBuffer buf = ByteBuffer.allocate(Index.SIZE);
-      FileChannelUtils.readFully(indexChannel, buf, ptr);
-
-      Index index = Index.decode((ByteBuffer) buf.flip());
-      nextSector = index.getSector();
-      if (nextSector <= 0 || nextSector > dataChannel.size() * Sector.SIZE)
-        return false;
-    } else {
-      nextSector = (int) ((dataChannel.size() + Sector.SIZE - 1) / Sector.SIZE);
-      if (nextSector == 0)
-        nextSector = 1;
+    int[] chain = Arrays.copyOf(old, count);
+    for (int i = old.length; i < count; i++)
+      chain[i] = allocateSector(i == 0 ? 1 : chain[i - 1] + 1);
+
+    /* write the chain before the index so the index never points at garbage */
+    writeChain(type, id, data, chain);
+
+    Index index = new Index(size, chain[0]);
+    FileChannelUtils.writeFully(type == 255 ? metaChannel : indexChannels[type], index.encode(), (long) id * Index.SIZE);
+    update(slot, id, index);
+
+    /* release any sectors the old file used that the new one doesn't */
+    for (int i = count; i < old.length; i++)
+      freeSector(old[i]);
+  }
+
+  /**
+   * Forces the journal to disk without applying it, so every write made so
+   * far will survive a crash. This does nothing if the store is not
+   * journaled.
+   *
+   * @throws IOException if an I/O error occurs.
+   */
+  public void sync() throws IOException {
+    if (journal != null)
+      journal.sync();
+  }
+
+  /**
+   * Applies every pending write in the journal to the data and index files
+   * and then empties the journal. The journal is synced first, so if the
+   * store is interrupted while the writes are being applied they are simply
+   * replayed when it is next opened. This does nothing if the store is not
+   * journaled. Reads and writes are blocked while the journal is flushed.
+   *
+   * @throws IOException if an I/O error occurs.
+   */
+  public void flush() throws IOException {
+    if (journal == null)
+      return;
+
+    lockAll();
+    try {
+      journal.sync();
+      apply(journal);
+    } finally {
+      unlockAll();
     }
+  }
 
-    Index index = new Index(data.remaining(), nextSector);
-    indexChannel.write(index.encode(), ptr);
+  /**
+   * Applies every record in the specified journal to the data and index
+   * files, forces them to disk and then empties the journal. The caller must
+   * hold every write lock.
+   *
+   * @param journal The journal.
+   * @throws IOException if an I/O error occurs.
+   */
+  private void apply(Journal journal) throws IOException {
+    Collection<Journal.Record> records = journal.getRecords();
+    if (records.isEmpty())
+      return;
 
-    ByteBuffer buf = ByteBuffer.allocate(Sector.SIZE);
+    for (Journal.Record record : records) {
+      ByteBuffer data = ByteBuffer.allocate(record.getSize());
+      journal.read(record, data);
+      data.flip();
 
-    int chunk = 0, remaining = index.getSize();
-    do {
-      int curSector = nextSector;
-      ptr = curSector * Sector.SIZE;
-      nextSector = 0;
+      writeFile(slot(record.getType()), record.getType(), record.getId(), data);
+    }
 
-      if (overwrite) {
-        buf.clear();
-        FileChannelUtils.readFully(dataChannel, buf, ptr);
+    dataChannel.force(false);
+    for (FileChannel channel : indexChannels)
+      channel.force(false);
+    metaChannel.force(false);
 
-        Sector sector = Sector.decode((ByteBuffer) buf.flip());
+    journal.reset();
+  }
 
-        if (sector.getType() != type)
-          return false;
+  /**
+   * Gets the sectors in the chain of a file, stopping early at the first
+   * sector whose header does not belong to the file.
+   *
+   * @param type  The type of the file.
+   * @param id    The id of the file.
+   * @param size  The size of the file.
+   * @param first The first sector of the file.
+   * @return The sectors in the chain.
+   * @throws IOException if an I/O error occurs.
+   */
+  private int[] getChain(int type, int id, int size, int first) throws IOException {
+    int count = Math.max((size + Sector.DATA_SIZE - 1) / Sector.DATA_SIZE, 1);
+    int[] chain = new int[count];
+
+    ByteBuffer header = ByteBuffer.allocate(Sector.HEADER_SIZE);
 
-        if (sector.getId() != id)
-          return false;
+    int length = 0;
+    for (int sector = first; length < count && sector > 0 && sector < getSectorCount(); length++) {
+      header.clear();
+      if (FileChannelUtils.readAvailable(dataChannel, header, (long) sector * Sector.SIZE) != Sector.HEADER_SIZE)
+        break;
+
+      if (Sector.getType(header, 0) != type || Sector.getId(header, 0) != id || Sector.getChunk(header, 0) != length)
+        break;
 
-        if (sector.getChunk() != chunk)
-          return false;
+      chain[length] = sector;
+      sector = Sector.getNextSector(header, 0);
+    }
+
+    return Arrays.copyOf(chain, length);
+  }
+
+  /**
+   * Writes a file to the specified chain of sectors. Runs of consecutive
+   * sectors are written with a single positional write.
+   *
+   * @param type  The type of the file.
+   * @param id    The id of the file.
+   * @param data  A {@link ByteBuffer} containing the contents of the file.
+   * @param chain The sectors to write the file to.
+   * @throws IOException if an I/O error occurs.
+   */
+  private void writeChain(int type, int id, ByteBuffer data, int[] chain) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(chain.length * Sector.SIZE);
+    for (int chunk = 0; chunk < chain.length; chunk++) {
+      int nextSector = chunk + 1 < chain.length ? chain[chunk + 1] : 0;
+      Sector.putHeader(buf, type, id, chunk, nextSector);
+
+      /* the last sector is padded with zeroes */
+      int length = Math.min(data.remaining(), Sector.DATA_SIZE);
+      ByteBuffer slice = data.duplicate();
+      slice.limit(slice.position() + length);
+      buf.put(slice);
+      buf.position(buf.position() + Sector.DATA_SIZE - length);
+      data.position(data.position() + length);
+    }
 
-        nextSector = sector.getNextSector();
-        if (nextSector < 0 || nextSector > dataChannel.size() / Sector.SIZE)
-          return false;
+    int start = 0;
+    for (int i = 1; i <= chain.length; i++) {
+      if (i == chain.length || chain[i] != chain[i - 1] + 1) {
+        buf.limit(i * Sector.SIZE).position(start * Sector.SIZE);
+        FileChannelUtils.writeFully(dataChannel, buf, (long) chain[start] * Sector.SIZE);
+        start = i;
       }
+    }
+  }
+
+  /**
+   * Reserves a sector for a new chain. If the free sector map has been built
+   * the first free sector at or after the hint is used, so chains stay
+   * contiguous where possible; otherwise the sector is taken from the end of
+   * the data file. Sectors are handed out from in-memory state rather than
+   * from the size of the data file, so that concurrent writers to different
+   * types never claim the same sector.
+   *
+   * @param hint The sector to start searching for a free sector from.
+   * @return The sector.
+   */
+  private int allocateSector(int hint) {
+    synchronized (allocationLock) {
+      if (usedSectors != null) {
+        int sector = usedSectors.nextClearBit(Math.max(hint, 1));
+        if (sector >= sectorCount) {
+          sector = usedSectors.nextClearBit(1);
+          if (sector >= sectorCount)
+            sector = sectorCount++;
+        }
 
-      if (nextSector == 0) {
-        overwrite = false;
-        nextSector = (int) ((dataChannel.size() + Sector.SIZE - 1) / Sector.SIZE);
-        if (nextSector == 0)
-          nextSector++;
-        if (nextSector == curSector)
-          nextSector++;
+        usedSectors.set(sector);
+        return sector;
       }
 
-      byte[] bytes = new byte[Sector.DATA_SIZE];
-      if (remaining < Sector.DATA_SIZE) {
-        data.get(bytes, 0, remaining);
-        nextSector = 0; // mark as EOF
-        remaining = 0;
-      } else {
-        remaining -= Sector.DATA_SIZE;
-        data.get(bytes, 0, Sector.DATA_SIZE);
+      return sectorCount++;
+    }
+  }
+
+  /**
+   * Returns a sector which is no longer part of any chain to the free sector
+   * map. This does nothing if the map has not been built.
+   *
+   * @param sector The sector.
+   */
+  private void freeSector(int sector) {
+    synchronized (allocationLock) {
+      if (usedSectors != null)
+        usedSectors.clear(sector);
+    }
+  }
+
+  /**
+   * Gets the number of sectors in the data file, including any which have
+   * been reserved but not yet written.
+   *
+   * @return The number of sectors.
+   */
+  private int getSectorCount() {
+    synchronized (allocationLock) {
+      return sectorCount;
+    }
+  }
+
+  /**
+   * Builds the free sector map by walking the chain of every file in every
+   * index. Afterwards, sectors which are not part of any chain, or which are
+   * released when a file is overwritten with a shorter one, are reused by
+   * later writes instead of growing the data file. Writes are blocked while
+   * the scan is in progress.
+   *
+   * @throws IOException if an I/O error occurs.
+   */
+  public void scanFreeSectors() throws IOException {
+    lockAll();
+    try {
+      BitSet used = new BitSet(getSectorCount());
+      used.set(0);
+
+      for (int slot = 0; slot < sizes.length; slot++) {
+        int type = slot == indexChannels.length ? 255 : slot;
+        for (int id = 0; id < sizes[slot].length; id++) {
+          for (int sector : getChain(type, id, sizes[slot][id], sectors[slot][id]))
+            used.set(sector);
+        }
       }
 
-      Sector sector = new Sector(type, id, chunk++, nextSector, bytes);
-      dataChannel.write(sector.encode(), ptr);
-    } while (remaining > 0);
+      synchronized (allocationLock) {
+        usedSectors = used;
+      }
+    } finally {
+      unlockAll();
+    }
+  }
+
+  /**
+   * Gets the number of sectors which are not part of any chain. This is only
+   * known once {@link #scanFreeSectors()} has been called.
+   *
+   * @return The number of free sectors, or {@code -1} if the free sector map
+   * has not been built.
+   */
+  public int getFreeSectorCount() {
+    synchronized (allocationLock) {
+      if (usedSectors == null)
+        return -1;
+
+      return sectorCount - usedSectors.cardinality();
+    }
+  }
+
+  /**
+   * Compacts the data file, so that every chain is contiguous and there are
+   * no unused sectors, and then truncates it.
+   * <p>
+   * The chains are first copied past the current end of the data file and
+   * the indexes are pointed at the copies. The copies are then moved down to
+   * the start of the file and the indexes are updated again before the file
+   * is truncated. At every point the indexes refer to complete chains, so an
+   * interrupted compaction leaves a usable (if larger) store. Both reads and
+   * writes are blocked while the store is being compacted.
+   *
+   * @throws IOException if an I/O error occurs, or if a file cannot be read
+   *                     because its chain is corrupt.
+   */
+  public void compact() throws IOException {
+    sync();
+    lockAll();
+    try {
+      if (journal != null)
+        apply(journal);
 
-    return true;
+      int base = getSectorCount();
+      int cursor = base;
+
+      /* copy every chain past the end of the data file */
+      int[][] moved = new int[sectors.length][];
+      for (int slot = 0; slot < sectors.length; slot++) {
+        int type = slot == indexChannels.length ? 255 : slot;
+        moved[slot] = new int[sectors[slot].length];
+
+        for (int id = 0; id < sectors[slot].length; id++) {
+          if (sectors[slot][id] == 0)
+            continue;
+
+          ByteBuffer data = ByteBuffer.allocate(sizes[slot][id]);
+          readChain(type, id, data.capacity(), sectors[slot][id], data);
+          data.flip();
+
+          int count = Math.max((data.limit() + Sector.DATA_SIZE - 1) / Sector.DATA_SIZE, 1);
+          int[] chain = new int[count];
+          for (int i = 0; i < count; i++)
+            chain[i] = cursor++;
+
+          writeChain(type, id, data, chain);
+          moved[slot][id] = chain[0];
+        }
+      }
+
+      dataChannel.force(false);
+      writeIndexes(moved);
+
+      /*
+       * move the copies down to the start of the file, adjusting the next
+       * sector pointers as we go
+       */
+      int shift = base - 1;
+      ByteBuffer buf = ByteBuffer.allocate(MAX_RUN_SECTORS * Sector.SIZE);
+      for (int sector = base; sector < cursor; sector += MAX_RUN_SECTORS) {
+        int count = Math.min(cursor - sector, MAX_RUN_SECTORS);
+        buf.clear();
+        buf.limit(count * Sector.SIZE);
+        FileChannelUtils.readFully(dataChannel, buf, (long) sector * Sector.SIZE);
+
+        for (int i = 0; i < count; i++) {
+          int pos = i * Sector.SIZE;
+          int nextSector = Sector.getNextSector(buf, pos);
+          if (nextSector != 0)
+            ByteBufferUtils.putTriByte(buf, pos + 4, nextSector - shift);
+        }
+
+        buf.flip();
+        FileChannelUtils.writeFully(dataChannel, buf, (long) (sector - shift) * Sector.SIZE);
+      }
+
+      dataChannel.force(false);
+      for (int[] slot : moved) {
+        for (int id = 0; id < slot.length; id++) {
+          if (slot[id] != 0)
+            slot[id] -= shift;
+        }
+      }
+      writeIndexes(moved);
+
+      /* finally drop the copies at the end of the file */
+      int count = cursor - shift;
+      dataChannel.truncate((long) count * Sector.SIZE);
+      dataChannel.force(false);
+
+      synchronized (allocationLock) {
+        sectorCount = count;
+        if (usedSectors != null) {
+          usedSectors = new BitSet(count);
+          usedSectors.set(0, count);
+        }
+      }
+
+      /* the old mapping may extend past the end of the truncated file */
+      if (dataMap != null)
+        map();
+    } finally {
+      unlockAll();
+    }
+  }
+
+  /**
+   * Rewrites every index file with the specified first sectors, keeping the
+   * existing file sizes, and updates the in-memory index tables to match.
+   *
+   * @param firstSectors The first sectors, indexed by type slot and then file
+   *                     id.
+   * @throws IOException if an I/O error occurs.
+   */
+  private void writeIndexes(int[][] firstSectors) throws IOException {
+    for (int slot = 0; slot < sizes.length; slot++) {
+      ByteBuffer buf = ByteBuffer.allocate(sizes[slot].length * Index.SIZE);
+      for (int id = 0; id < sizes[slot].length; id++) {
+        ByteBufferUtils.putTriByte(buf, sizes[slot][id]);
+        ByteBufferUtils.putTriByte(buf, firstSectors[slot][id]);
+      }
+
+      FileChannel channel = slot == indexChannels.length ? metaChannel : indexChannels[slot];
+      FileChannelUtils.writeFully(channel, (ByteBuffer) buf.flip(), 0);
+      channel.force(false);
+
+      sectors[slot] = firstSectors[slot].clone();
+    }
+  }
+
+  /**
+   * Acquires the write lock of every type slot, in slot order.
+   */
+  private void lockAll() {
+    for (ReadWriteLock lock : locks)
+      lock.writeLock().lock();
+  }
+
+  /**
+   * Releases the write lock of every type slot, in reverse slot order.
+   */
+  private void unlockAll() {
+    for (int slot = locks.length - 1; slot >= 0; slot--)
+      locks[slot].writeLock().unlock();
+  }
+
+  /**
+   * Gets the size of a file without reading it.
+   *
+   * @param type The type of the file.
+   * @param id   The id of the file.
+   * @return The size of the file in bytes.
+   * @throws IOException if an I/O error occurs.
+   */
+  public int getFileSize(int type, int id) throws IOException {
+    int slot = slot(type);
+
+    Lock lock = locks[slot].readLock();
+    lock.lock();
+    try {
+      Journal.Record record = journal == null ? null : journal.get(type, id);
+      if (record != null)
+        return record.getSize();
+
+      if (id < 0 || id >= sizes[slot].length)
+        throw new FileNotFoundException();
+
+      return sizes[slot][id];
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Gets the index of every file of a type as it is stored in the index file,
+   * ignoring any pending writes in the journal.
+   *
+   * @param type The type.
+   * @return The indexes, indexed by file id.
+   * @throws IOException if an I/O error occurs.
+   */
+  Index[] getIndexes(int type) throws IOException {
+    int slot = slot(type);
+
+    Lock lock = locks[slot].readLock();
+    lock.lock();
+    try {
+      Index[] indexes = new Index[sizes[slot].length];
+      for (int id = 0; id < indexes.length; id++)
+        indexes[id] = new Index(sizes[slot][id], sectors[slot][id]);
+      return indexes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Gets the size of the data file.
+   *
+   * @return The size of the data file in bytes.
+   * @throws IOException if an I/O error occurs.
+   */
+  long getDataSize() throws IOException {
+    return dataChannel.size();
+  }
+
+  /**
+   * Reads raw sectors from the data file into the specified buffer, stopping
+   * early at the end of the file.
+   *
+   * @param buf      The buffer.
+   * @param position The position in the data file to start reading from.
+   * @return The number of bytes read.
+   * @throws IOException if an I/O error occurs.
+   */
+  int readData(ByteBuffer buf, long position) throws IOException {
+    return FileChannelUtils.readAvailable(dataChannel, buf, position);
   }
 
   /**
@@ -247,61 +1027,168 @@ public final class FileStore implements Closeable {
    * @throws IOException if an I/O error occurs.
    */
   public ByteBuffer read(int type, int id) throws IOException {
-    if ((type < 0 || type >= indexChannels.length) && type != 255)
-      throw new FileNotFoundException();
+    int slot = slot(type);
 
-    FileChannel indexChannel = type == 255 ? metaChannel : indexChannels[type];
+    Lock lock = locks[slot].readLock();
+    lock.lock();
+    try {
+      Journal.Record record = journal == null ? null : journal.get(type, id);
+      if (record != null) {
+        ByteBuffer data = ByteBuffer.allocate(record.getSize());
+        journal.read(record, data);
+        return (ByteBuffer) data.flip();
+      }
 
-    long ptr = id * Index.SIZE;
-    if (ptr < 0 || ptr >= indexChannel.size())
-      throw new FileNotFoundException();
+      if (id < 0 || id >= sizes[slot].length)
+        throw new FileNotFoundException();
 
-    ByteBuffer buf = ByteBuffer.allocate(Index.SIZE);
-    FileChannelUtils.readFully(indexChannel, buf, ptr);
+      ByteBuffer data = ByteBuffer.allocate(sizes[slot][id]);
+      readChain(type, id, data.capacity(), sectors[slot][id], data);
+      return (ByteBuffer) data.flip();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Reads a file into the specified buffer, starting at its current
+   * position. The position is advanced by the size of the file, which can be
+   * found ahead of time with {@link #getFileSize(int, int)}.
+   *
+   * @param type The type of the file.
+   * @param id   The id of the file.
+   * @param data The buffer to read the file into.
+   * @return The number of bytes read.
+   * @throws IOException             if an I/O error occurs.
+   * @throws BufferOverflowException if the buffer does not have enough space
+   *                                 remaining for the whole file.
+   */
+  public int read(int type, int id, ByteBuffer data) throws IOException {
+    int slot = slot(type);
+
+    /* hold the read lock so that a writer can't change the chain under us */
+    Lock lock = locks[slot].readLock();
+    lock.lock();
+    try {
+      Journal.Record record = journal == null ? null : journal.get(type, id);
+      if (record != null) {
+        if (data.remaining() < record.getSize())
+          throw new BufferOverflowException();
+
+        journal.read(record, data);
+        return record.getSize();
+      }
 
-    Index index = Index.decode((ByteBuffer) buf.flip());
+      if (id < 0 || id >= sizes[slot].length)
+        throw new FileNotFoundException();
 
-    ByteBuffer data = ByteBuffer.allocate(index.getSize());
-    buf = ByteBuffer.allocate(Sector.SIZE);
+      int size = sizes[slot][id];
+      if (data.remaining() < size)
+        throw new BufferOverflowException();
 
-    int chunk = 0, remaining = index.getSize();
-    ptr = index.getSector() * Sector.SIZE;
+      readChain(type, id, size, sectors[slot][id], data);
+      return size;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Reads the sector chain of a file into the specified buffer, checking the
+   * header of every sector along the way.
+   *
+   * @param type  The type of the file.
+   * @param id    The id of the file.
+   * @param size  The size of the file.
+   * @param first The first sector of the file.
+   * @param data  The buffer to read the file into.
+   * @throws IOException if an I/O error occurs.
+   */
+  private void readChain(int type, int id, int size, int first, ByteBuffer data) throws IOException {
+    /*
+     * sectors are never decoded into objects: the header is parsed in place
+     * and the payload is copied straight into the output buffer, either from
+     * the mapped data file or from a scratch buffer holding a run of sectors
+     */
+    MappedByteBuffer[] regions = dataMap;
+    ByteBuffer[] maps = regions == null ? null : new ByteBuffer[regions.length];
+    ByteBuffer buf = null;
+    long runPtr = 0;
+    int runLength = 0;
+
+    int chunk = 0, remaining = size;
+    long ptr = (long) first * Sector.SIZE;
     do {
-      buf.clear();
-      FileChannelUtils.readFully(dataChannel, buf, ptr);
-      Sector sector = Sector.decode((ByteBuffer) buf.flip());
+      ByteBuffer sector;
+      int pos;
+      int region = (int) (ptr / MAP_REGION_SIZE);
+      if (maps != null && region < maps.length && ptr % MAP_REGION_SIZE + Sector.SIZE <= regions[region].capacity()) {
+        if (maps[region] == null)
+          maps[region] = regions[region].duplicate();
 
-      if (remaining > Sector.DATA_SIZE) {
-        data.put(sector.getData(), 0, Sector.DATA_SIZE);
-        remaining -= Sector.DATA_SIZE;
+        sector = maps[region];
+        pos = (int) (ptr % MAP_REGION_SIZE);
+      } else {
+        /*
+         * chains written in append mode are usually contiguous, so rather than
+         * reading one sector at a time we speculatively read as many of the
+         * remaining sectors as fit in the scratch buffer and only go back to
+         * the disk when the chain leaves the run
+         */
+        if (ptr < runPtr || ptr + Sector.SIZE > runPtr + runLength) {
+          int count = Math.min((remaining + Sector.DATA_SIZE - 1) / Sector.DATA_SIZE, MAX_RUN_SECTORS);
+          if (buf == null)
+            buf = ByteBuffer.allocate(Math.max(count, 1) * Sector.SIZE);
 
-        if (sector.getType() != type)
+          buf.clear();
+          buf.limit(Math.max(count, 1) * Sector.SIZE);
+          runPtr = ptr;
+          runLength = FileChannelUtils.readAvailable(dataChannel, buf, ptr) / Sector.SIZE * Sector.SIZE;
+          if (runLength == 0)
+            throw new EOFException();
+        }
+
+        sector = buf;
+        pos = (int) (ptr - runPtr);
+      }
+
+      int length = Math.min(remaining, Sector.DATA_SIZE);
+      if (remaining > Sector.DATA_SIZE) {
+        if (Sector.getType(sector, pos) != type)
           throw new IOException("File type mismatch.");
 
-        if (sector.getId() != id)
+        if (Sector.getId(sector, pos) != id)
           throw new IOException("File id mismatch.");
 
-        if (sector.getChunk() != chunk++)
+        if (Sector.getChunk(sector, pos) != chunk++)
           throw new IOException("Chunk mismatch.");
 
-        ptr = sector.getNextSector() * Sector.SIZE;
-      } else {
-        data.put(sector.getData(), 0, remaining);
-        remaining = 0;
+        ptr = (long) Sector.getNextSector(sector, pos) * Sector.SIZE;
       }
-    } while (remaining > 0);
 
-    return (ByteBuffer) data.flip();
+      sector.limit(pos + Sector.HEADER_SIZE + length).position(pos + Sector.HEADER_SIZE);
+      data.put(sector);
+      sector.limit(sector.capacity());
+      remaining -= length;
+    } while (remaining > 0);
   }
 
   @Override
   public void close() throws IOException {
+    if (journal != null) {
+      flush();
+      journal.close();
+    }
+
     dataChannel.close();
 
     for (FileChannel channel : indexChannels)
       channel.close();
 
     metaChannel.close();
+
+    /* the mappings are released once they are garbage collected */
+    dataMap = null;
   }
 
 }
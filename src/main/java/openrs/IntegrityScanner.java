@@ -0,0 +1,841 @@
+package openrs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An {@link IntegrityScanner} checks every file in a {@link FileStore}. It
+ * walks the sector chain of every index entry in every index file, checking
+ * the header of each sector, detects chains which run into a sector of
+ * another chain and checks the contents of every file against the CRC and
+ * whirlpool digest in its {@link ReferenceTable}.
+ * <p>
+ * The index files are split into ranges of files which are scanned in
+ * parallel on a {@link ForkJoinPool}. Contiguous sectors are read with a
+ * single positional read, so a scan of a freshly written or compacted store
+ * reads the data file more or less sequentially. The store should not be
+ * written to while it is being scanned.
+ */
+public final class IntegrityScanner {
+
+  /**
+   * Scans the store in the specified directory and prints the report as JSON
+   * to standard output. The exit status is {@code 1} if any problems were
+   * found, but warnings alone do not change it.
+   *
+   * @param args The directory and, optionally, the number of threads to use.
+   * @throws IOException if an I/O error occurs.
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1 || args.length > 2) {
+      System.err.println("Usage: IntegrityScanner <cache directory> [threads]");
+      System.exit(2);
+    }
+
+    ForkJoinPool pool = args.length == 2 ? new ForkJoinPool(Integer.parseInt(args[1])) : ForkJoinPool.commonPool();
+
+    Report report;
+    try (FileStore store = FileStore.open(new File(args[0]))) {
+      report = scan(store, pool);
+    }
+
+    report.print(System.out);
+    System.exit(report.getProblems().isEmpty() ? 0 : 1);
+  }
+
+  /**
+   * Scans a store on the common {@link ForkJoinPool}.
+   *
+   * @param store The store.
+   * @return The report.
+   * @throws IOException if an I/O error occurs.
+   */
+  public static Report scan(FileStore store) throws IOException {
+    return scan(store, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Scans a store on the specified pool. Any pending writes in the store's
+   * journal are applied first, so that the data and index files are scanned
+   * as they will be served.
+   *
+   * @param store The store.
+   * @param pool  The pool.
+   * @return The report.
+   * @throws IOException if an I/O error occurs.
+   */
+  public static Report scan(FileStore store, ForkJoinPool pool) throws IOException {
+    store.flush();
+    return new IntegrityScanner(store, pool).scan();
+  }
+
+  /**
+   * A problem found by an {@link IntegrityScanner}.
+   */
+  public static final class Problem {
+
+    /**
+     * The kinds of problem.
+     */
+    public enum Kind {
+
+      /**
+       * A chain points at a sector outside the data file.
+       */
+      BAD_POINTER,
+
+      /**
+       * A sector could not be read in full because the data file ends.
+       */
+      TRUNCATED,
+
+      /**
+       * A sector header does not belong to the chain which reached it, and
+       * the sector is not part of any other chain.
+       */
+      BAD_HEADER,
+
+      /**
+       * A sector header does not belong to the chain which reached it,
+       * because the sector is part of the chain named by its header. Both
+       * chains lead to the sector, so writing either file corrupts the
+       * other.
+       */
+      SHARED_SECTOR,
+
+      /**
+       * The last sector of a chain points to another sector. This is only a
+       * warning: readers stop at the size in the index. {@link FileStore}
+       * always ends a chain with 0, so this is only found in stores written
+       * by older versions of it or by the client, which leave the pointer
+       * behind when the size of a file is a multiple of
+       * {@link Sector#DATA_SIZE}.
+       */
+      TRAILING_POINTER,
+
+      /**
+       * A file in a reference table does not exist.
+       */
+      MISSING,
+
+      /**
+       * A file is not a valid container.
+       */
+      CORRUPT,
+
+      /**
+       * The CRC checksum of a file does not match its reference table.
+       */
+      CRC,
+
+      /**
+       * The whirlpool digest of a file does not match its reference table.
+       */
+      WHIRLPOOL
+
+    }
+
+    /**
+     * The type of the file.
+     */
+    private final int type;
+
+    /**
+     * The file id.
+     */
+    private final int file;
+
+    /**
+     * The sector the problem was found in, or {@code -1} if it is not
+     * specific to a sector.
+     */
+    private final int sector;
+
+    /**
+     * The kind of problem.
+     */
+    private final Kind kind;
+
+    /**
+     * A description of the problem.
+     */
+    private final String message;
+
+    /**
+     * Creates a new problem.
+     *
+     * @param type    The type of the file.
+     * @param file    The file id.
+     * @param sector  The sector the problem was found in, or {@code -1}.
+     * @param kind    The kind of problem.
+     * @param message A description of the problem.
+     */
+    public Problem(int type, int file, int sector, Kind kind, String message) {
+      this.type = type;
+      this.file = file;
+      this.sector = sector;
+      this.kind = kind;
+      this.message = message;
+    }
+
+    /**
+     * Gets the type of the file.
+     *
+     * @return The type.
+     */
+    public int getType() {
+      return type;
+    }
+
+    /**
+     * Gets the file id.
+     *
+     * @return The file id.
+     */
+    public int getFile() {
+      return file;
+    }
+
+    /**
+     * Gets the sector the problem was found in.
+     *
+     * @return The sector, or {@code -1} if the problem is not specific to a
+     * sector.
+     */
+    public int getSector() {
+      return sector;
+    }
+
+    /**
+     * Gets the kind of problem.
+     *
+     * @return The kind.
+     */
+    public Kind getKind() {
+      return kind;
+    }
+
+    /**
+     * Gets a description of the problem.
+     *
+     * @return The description.
+     */
+    public String getMessage() {
+      return message;
+    }
+
+    @Override
+    public String toString() {
+      return type + "/" + file + (sector == -1 ? "" : " @" + sector) + ": " + kind + " (" + message + ")";
+    }
+
+  }
+
+  /**
+   * The result of a scan.
+   */
+  public static final class Report {
+
+    /**
+     * The problems found, ordered by type, file and sector.
+     */
+    private final List<Problem> problems;
+
+    /**
+     * The warnings found, which do not stop a file from being read, ordered
+     * by type, file and sector.
+     */
+    private final List<Problem> warnings;
+
+    /**
+     * The number of files scanned.
+     */
+    private final long files;
+
+    /**
+     * The number of sectors read.
+     */
+    private final long sectors;
+
+    /**
+     * The number of sectors in the data file which are not part of any
+     * chain, not counting the reserved sector 0.
+     */
+    private final long unusedSectors;
+
+    /**
+     * The number of bytes read from the data file.
+     */
+    private final long bytes;
+
+    /**
+     * The duration of the scan in nanoseconds.
+     */
+    private final long elapsed;
+
+    /**
+     * Creates a new report.
+     *
+     * @param problems      The problems found.
+     * @param warnings      The warnings found.
+     * @param files         The number of files scanned.
+     * @param sectors       The number of sectors read.
+     * @param unusedSectors The number of sectors not part of any chain.
+     * @param bytes         The number of bytes read from the data file.
+     * @param elapsed       The duration of the scan in nanoseconds.
+     */
+    public Report(List<Problem> problems, List<Problem> warnings, long files, long sectors, long unusedSectors, long bytes, long elapsed) {
+      this.problems = Collections.unmodifiableList(new ArrayList<Problem>(problems));
+      this.warnings = Collections.unmodifiableList(new ArrayList<Problem>(warnings));
+      this.files = files;
+      this.sectors = sectors;
+      this.unusedSectors = unusedSectors;
+      this.bytes = bytes;
+      this.elapsed = elapsed;
+    }
+
+    /**
+     * Gets the problems found, ordered by type, file and sector.
+     *
+     * @return The problems.
+     */
+    public List<Problem> getProblems() {
+      return problems;
+    }
+
+    /**
+     * Gets the warnings found, ordered by type, file and sector.
+     *
+     * @return The warnings.
+     */
+    public List<Problem> getWarnings() {
+      return warnings;
+    }
+
+    /**
+     * Gets the number of files scanned.
+     *
+     * @return The number of files.
+     */
+    public long getFiles() {
+      return files;
+    }
+
+    /**
+     * Gets the number of sectors read.
+     *
+     * @return The number of sectors.
+     */
+    public long getSectors() {
+      return sectors;
+    }
+
+    /**
+     * Gets the number of sectors in the data file which are not part of any
+     * chain.
+     *
+     * @return The number of unused sectors.
+     */
+    public long getUnusedSectors() {
+      return unusedSectors;
+    }
+
+    /**
+     * Gets the number of bytes read from the data file.
+     *
+     * @return The number of bytes.
+     */
+    public long getBytes() {
+      return bytes;
+    }
+
+    /**
+     * Gets the duration of the scan.
+     *
+     * @return The duration in nanoseconds.
+     */
+    public long getElapsedNanos() {
+      return elapsed;
+    }
+
+    /**
+     * Gets the rate at which the data file was read.
+     *
+     * @return The throughput in bytes per second.
+     */
+    public double getBytesPerSecond() {
+      return elapsed == 0 ? 0 : bytes * 1e9 / elapsed;
+    }
+
+    /**
+     * Gets the rate at which files were scanned.
+     *
+     * @return The throughput in files per second.
+     */
+    public double getFilesPerSecond() {
+      return elapsed == 0 ? 0 : files * 1e9 / elapsed;
+    }
+
+    /**
+     * Prints this report as a single JSON object.
+     *
+     * @param out The stream to print to.
+     */
+    public void print(PrintStream out) {
+      StringBuilder bldr = new StringBuilder();
+      bldr.append("{\"files\":").append(files);
+      bldr.append(",\"sectors\":").append(sectors);
+      bldr.append(",\"unusedSectors\":").append(unusedSectors);
+      bldr.append(",\"bytes\":").append(bytes);
+      bldr.append(",\"elapsedMillis\":").append(elapsed / 1000000);
+      bldr.append(",\"bytesPerSecond\":").append(String.format(Locale.ROOT, "%.0f", getBytesPerSecond()));
+      bldr.append(",\"filesPerSecond\":").append(String.format(Locale.ROOT, "%.0f", getFilesPerSecond()));
+      bldr.append(",\"problems\":");
+      append(bldr, problems);
+      bldr.append(",\"warnings\":");
+      append(bldr, warnings);
+      bldr.append('}');
+      out.println(bldr);
+    }
+
+    /**
+     * Appends a list of problems to a JSON document as an array.
+     *
+     * @param bldr     The document.
+     * @param problems The problems.
+     */
+    private static void append(StringBuilder bldr, List<Problem> problems) {
+      bldr.append('[');
+      for (int i = 0; i < problems.size(); i++) {
+        Problem problem = problems.get(i);
+        if (i != 0)
+          bldr.append(',');
+
+        bldr.append("{\"kind\":\"").append(problem.getKind()).append('"');
+        bldr.append(",\"type\":").append(problem.getType());
+        bldr.append(",\"file\":").append(problem.getFile());
+        bldr.append(",\"sector\":").append(problem.getSector());
+        bldr.append(",\"message\":");
+        quote(bldr, problem.getMessage());
+        bldr.append('}');
+      }
+      bldr.append(']');
+    }
+
+    /**
+     * Appends a string to a JSON document as a quoted string literal.
+     *
+     * @param bldr The document.
+     * @param str  The string.
+     */
+    private static void quote(StringBuilder bldr, String str) {
+      bldr.append('"');
+      for (int i = 0; i < str.length(); i++) {
+        char c = str.charAt(i);
+        if (c == '"' || c == '\\')
+          bldr.append('\\').append(c);
+        else if (c < 0x20)
+          bldr.append(String.format("\\u%04x", (int) c));
+        else
+          bldr.append(c);
+      }
+      bldr.append('"');
+    }
+
+  }
+
+  /**
+   * The number of files scanned by each task.
+   */
+  private static final int RANGE_SIZE = 256;
+
+  /**
+   * The maximum number of contiguous sectors fetched by a single read.
+   */
+  private static final int MAX_RUN_SECTORS = 64;
+
+  /**
+   * The store being scanned.
+   */
+  private final FileStore store;
+
+  /**
+   * The pool the scan runs on.
+   */
+  private final ForkJoinPool pool;
+
+  /**
+   * The number of sectors in the data file, including a trailing partial
+   * sector.
+   */
+  private int sectorCount;
+
+  /**
+   * A bitmap of the sectors which have been reached by a chain.
+   */
+  private AtomicLongArray claimed;
+
+  /**
+   * The problems found so far.
+   */
+  private final Queue<Problem> problems = new ConcurrentLinkedQueue<Problem>();
+
+  /**
+   * The sectors reached by a chain whose header does not belong to it, which
+   * are reported once every chain has been walked.
+   */
+  private final Queue<Problem> badHeaders = new ConcurrentLinkedQueue<Problem>();
+
+  /**
+   * The warnings found so far.
+   */
+  private final Queue<Problem> warnings = new ConcurrentLinkedQueue<Problem>();
+
+  /**
+   * The number of files scanned so far.
+   */
+  private final LongAdder files = new LongAdder();
+
+  /**
+   * The number of sectors read so far.
+   */
+  private final LongAdder sectors = new LongAdder();
+
+  /**
+   * The number of bytes read from the data file so far.
+   */
+  private final LongAdder bytes = new LongAdder();
+
+  /**
+   * Creates a new scanner.
+   *
+   * @param store The store to scan.
+   * @param pool  The pool to scan it on.
+   */
+  private IntegrityScanner(FileStore store, ForkJoinPool pool) {
+    this.store = store;
+    this.pool = pool;
+  }
+
+  /**
+   * Scans the store. The reference tables are scanned and decoded first, and
+   * then the files of every type are scanned and checked against them.
+   *
+   * @return The report.
+   * @throws IOException if an I/O error occurs.
+   */
+  private Report scan() throws IOException {
+    long start = System.nanoTime();
+
+    sectorCount = (int) Math.min((store.getDataSize() + Sector.SIZE - 1) / Sector.SIZE, Integer.MAX_VALUE);
+    claimed = new AtomicLongArray((sectorCount + 63) / 64);
+
+    final int types = store.getTypeCount();
+    final Index[] metaIndexes = store.getIndexes(255);
+    final ByteBuffer[] metaFiles = new ByteBuffer[metaIndexes.length];
+    join(scanRanges(255, metaIndexes.length, new Range() {
+      @Override
+      public void scan(Chain chain, int first, int last) throws IOException {
+        for (int id = first; id < last; id++)
+          metaFiles[id] = chain.read(255, id, metaIndexes[id], true);
+      }
+    }));
+
+    List<ForkJoinTask<Void>> tasks = new ArrayList<ForkJoinTask<Void>>();
+    for (int i = 0; i < types; i++) {
+      final int type = i;
+      final Index[] indexes = store.getIndexes(type);
+      final ReferenceTable table = i < metaFiles.length ? decodeTable(type, metaFiles[i]) : null;
+
+      int count = Math.max(indexes.length, table == null ? 0 : table.capacity());
+      tasks.addAll(scanRanges(type, count, new Range() {
+        @Override
+        public void scan(Chain chain, int first, int last) throws IOException {
+          for (int id = first; id < last; id++) {
+            ReferenceTable.Entry entry = table == null || id >= table.capacity() ? null : table.getEntry(id);
+            Index index = id < indexes.length ? indexes[id] : null;
+
+            if (index == null || index.getSize() == 0) {
+              if (entry != null)
+                problems.add(new Problem(type, id, -1, Problem.Kind.MISSING, "file does not exist"));
+              continue;
+            }
+
+            ByteBuffer buf = chain.read(type, id, index, entry != null);
+            if (buf != null && entry != null) {
+              Cache.Mismatch mismatch = Cache.check(type, id, table, entry, buf);
+              if (mismatch != null)
+                problems.add(new Problem(type, id, -1, Problem.Kind.valueOf(mismatch.getKind().name()), mismatch.getMessage()));
+            }
+          }
+        }
+      }));
+    }
+    join(tasks);
+
+    /* a sector whose header fails is shared if the chain it names reached it */
+    for (Problem problem : badHeaders) {
+      if (isClaimed(problem.getSector()))
+        problems.add(new Problem(problem.getType(), problem.getFile(), problem.getSector(), Problem.Kind.SHARED_SECTOR, problem.getMessage()));
+      else
+        problems.add(problem);
+    }
+
+    long used = 0;
+    for (int i = 0; i < claimed.length(); i++)
+      used += Long.bitCount(claimed.get(i));
+
+    long unused = Math.max(sectorCount - 1 - used, 0);
+    return new Report(sort(problems), sort(warnings), files.sum(), sectors.sum(), unused, bytes.sum(), System.nanoTime() - start);
+  }
+
+  /**
+   * Sorts problems by type, file and sector.
+   *
+   * @param problems The problems.
+   * @return The sorted problems.
+   */
+  private static List<Problem> sort(Queue<Problem> problems) {
+    List<Problem> sorted = new ArrayList<Problem>(problems);
+    Collections.sort(sorted, new Comparator<Problem>() {
+      @Override
+      public int compare(Problem a, Problem b) {
+        if (a.getType() != b.getType())
+          return Integer.compare(a.getType(), b.getType());
+        if (a.getFile() != b.getFile())
+          return Integer.compare(a.getFile(), b.getFile());
+        return Integer.compare(a.getSector(), b.getSector());
+      }
+    });
+    return sorted;
+  }
+
+  /**
+   * Decodes the reference table of a type, recording a problem if it cannot
+   * be decoded.
+   *
+   * @param type The type.
+   * @param buf  The contents of the reference table, or {@code null} if its
+   *             chain could not be read.
+   * @return The reference table, or {@code null} if there is none.
+   */
+  private ReferenceTable decodeTable(int type, ByteBuffer buf) {
+    if (buf == null || buf.limit() == 0)
+      return null;
+
+    try {
+      return ReferenceTable.decode(Container.decode(buf).getData());
+    } catch (IOException | RuntimeException e) {
+      problems.add(new Problem(255, type, -1, Problem.Kind.CORRUPT, "reference table could not be decoded: " + e));
+      return null;
+    }
+  }
+
+  /**
+   * Scans a range of the files of a type.
+   */
+  private interface Range {
+
+    /**
+     * Scans the files in the range.
+     *
+     * @param chain The chain reader of the task.
+     * @param first The first file to scan.
+     * @param last  One more than the last file to scan.
+     * @throws IOException if an I/O error occurs.
+     */
+    void scan(Chain chain, int first, int last) throws IOException;
+
+  }
+
+  /**
+   * Submits a task to the pool for every {@link #RANGE_SIZE} files of a type.
+   *
+   * @param type  The type.
+   * @param count The number of files.
+   * @param range The scan to run on each range.
+   * @return The tasks.
+   */
+  private List<ForkJoinTask<Void>> scanRanges(int type, int count, final Range range) {
+    List<ForkJoinTask<Void>> tasks = new ArrayList<ForkJoinTask<Void>>();
+    for (int start = 0; start < count; start += RANGE_SIZE) {
+      final int first = start;
+      final int last = Math.min(start + RANGE_SIZE, count);
+      tasks.add(pool.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          range.scan(new Chain(), first, last);
+          return null;
+        }
+      }));
+    }
+    return tasks;
+  }
+
+  /**
+   * Waits for every task to complete.
+   *
+   * @param tasks The tasks.
+   * @throws IOException if a task failed with an I/O error.
+   */
+  private static void join(List<ForkJoinTask<Void>> tasks) throws IOException {
+    for (ForkJoinTask<Void> task : tasks)
+      Cache.join(task);
+  }
+
+  /**
+   * Marks a sector as part of a chain.
+   *
+   * @param sector The sector.
+   */
+  private void claim(int sector) {
+    int word = sector >>> 6;
+    long bit = 1L << sector;
+    for (;;) {
+      long value = claimed.get(word);
+      if ((value & bit) != 0 || claimed.compareAndSet(word, value, value | bit))
+        return;
+    }
+  }
+
+  /**
+   * Checks if a sector is part of a chain.
+   *
+   * @param sector The sector.
+   * @return {@code true} if a chain whose header check passed reached the
+   * sector, {@code false} otherwise.
+   */
+  private boolean isClaimed(int sector) {
+    return (claimed.get(sector >>> 6) & (1L << sector)) != 0;
+  }
+
+  /**
+   * Walks sector chains, keeping the most recently read run of sectors so
+   * that contiguous chains are read with a single positional read. Each task
+   * has its own chain reader.
+   */
+  private final class Chain {
+
+    /**
+     * The most recently read run of sectors.
+     */
+    private final ByteBuffer run = ByteBuffer.allocate(MAX_RUN_SECTORS * Sector.SIZE);
+
+    /**
+     * The first sector of the run.
+     */
+    private long runStart;
+
+    /**
+     * The number of complete sectors in the run.
+     */
+    private int runLength;
+
+    /**
+     * Walks the chain of a file, checking the header of every sector and
+     * recording any problems found.
+     *
+     * @param type  The type of the file.
+     * @param id    The id of the file.
+     * @param index The index of the file.
+     * @param copy  A flag indicating if the contents of the file should be
+     *              returned.
+     * @return The contents of the file, or {@code null} if they were not
+     * requested or the chain is broken.
+     * @throws IOException if an I/O error occurs.
+     */
+    public ByteBuffer read(int type, int id, Index index, boolean copy) throws IOException {
+      int size = index.getSize();
+      ByteBuffer data = copy ? ByteBuffer.allocate(size) : null;
+      if (size == 0)
+        return data;
+
+      files.increment();
+
+      int count = (size + Sector.DATA_SIZE - 1) / Sector.DATA_SIZE;
+      int sector = index.getSector();
+      for (int chunk = 0; chunk < count; chunk++) {
+        if (sector <= 0 || sector >= sectorCount) {
+          problems.add(new Problem(type, id, sector, Problem.Kind.BAD_POINTER, "chunk " + chunk + " points outside the data file"));
+          return null;
+        }
+
+        if (!fetch(sector, count - chunk)) {
+          problems.add(new Problem(type, id, sector, Problem.Kind.TRUNCATED, "chunk " + chunk + " is past the end of the data file"));
+          return null;
+        }
+
+        int pos = (int) (sector - runStart) * Sector.SIZE;
+        int headerType = Sector.getType(run, pos);
+        int headerId = Sector.getId(run, pos);
+        int headerChunk = Sector.getChunk(run, pos);
+        if (headerType != type || headerId != id || headerChunk != chunk) {
+          badHeaders.add(new Problem(type, id, sector, Problem.Kind.BAD_HEADER, "chunk " + chunk + " is in a sector holding "
+              + headerType + "/" + headerId + " chunk " + headerChunk));
+          return null;
+        }
+
+        /*
+         * only a sector whose header names this chunk is claimed, so a bad
+         * pointer into another file's chain is blamed on the file holding it
+         */
+        claim(sector);
+
+        int next = Sector.getNextSector(run, pos);
+        if (chunk == count - 1 && next != 0)
+          warnings.add(new Problem(type, id, sector, Problem.Kind.TRAILING_POINTER, "last chunk points to sector " + next));
+
+        if (data != null) {
+          ByteBuffer slice = run.duplicate();
+          slice.position(pos + Sector.HEADER_SIZE).limit(pos + Sector.HEADER_SIZE + Math.min(data.remaining(), Sector.DATA_SIZE));
+          data.put(slice);
+        }
+
+        sector = next;
+      }
+
+      return data == null ? null : (ByteBuffer) data.flip();
+    }
+
+    /**
+     * Ensures that a sector is in the run, reading a new run starting at the
+     * sector if it is not.
+     *
+     * @param sector    The sector.
+     * @param remaining The number of sectors left in the chain.
+     * @return {@code true} if the sector was read in full, {@code false} if
+     * the data file ends before it.
+     * @throws IOException if an I/O error occurs.
+     */
+    private boolean fetch(int sector, int remaining) throws IOException {
+      if (sector >= runStart && sector < runStart + runLength)
+        return true;
+
+      run.clear();
+      run.limit(Math.min(remaining, MAX_RUN_SECTORS) * Sector.SIZE);
+      int read = store.readData(run, (long) sector * Sector.SIZE);
+      bytes.add(read);
+
+      runStart = sector;
+      runLength = read / Sector.SIZE;
+      sectors.add(runLength);
+      return runLength > 0;
+    }
+
+  }
+
+}
@@ -0,0 +1,411 @@
+package openrs;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import openrs.util.FileChannelUtils;
+
+/**
+ * A {@link Journal} is an append-only log of pending writes to a
+ * {@link FileStore}. Writes are recorded in the journal first and only
+ * applied to the data and index files once the journal has been synced, so
+ * an interrupted write can always be replayed from the journal the next time
+ * the store is opened.
+ * <p>
+ * Records are appended in groups, each followed by a commit record, and a
+ * group is either replayed in full or not at all. A group which was only
+ * partially written is simply discarded, rolling the store back to its state
+ * before that group.
+ */
+public final class Journal implements Closeable {
+
+  /**
+   * The size of the header of each record in bytes.
+   */
+  public static final int HEADER_SIZE = 13;
+
+  /**
+   * The length stored in the header of a commit record, which ends a group.
+   * The id of a commit record holds the number of records in the group.
+   */
+  private static final int COMMIT_LENGTH = -1;
+
+  /**
+   * Opens the journal stored in the specified file, creating it if it does
+   * not exist. Every committed group in the file is loaded, and a trailing
+   * group which is incomplete or fails its checksum is discarded.
+   *
+   * @param file The file.
+   * @return The journal.
+   * @throws IOException if an I/O error occurs.
+   */
+  public static Journal open(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    Journal journal = new Journal(raf.getChannel());
+    journal.recover();
+    return journal;
+  }
+
+  /**
+   * A single write recorded in a {@link Journal}.
+   */
+  public static final class Record {
+
+    /**
+     * The type of the file.
+     */
+    private final int type;
+
+    /**
+     * The id of the file.
+     */
+    private final int id;
+
+    /**
+     * The position of the file's contents within the journal.
+     */
+    private final long position;
+
+    /**
+     * The size of the file in bytes.
+     */
+    private final int size;
+
+    /**
+     * Creates a new record.
+     *
+     * @param type     The type of the file.
+     * @param id       The id of the file.
+     * @param position The position of the file's contents within the
+     *                 journal.
+     * @param size     The size of the file in bytes.
+     */
+    public Record(int type, int id, long position, int size) {
+      this.type = type;
+      this.id = id;
+      this.position = position;
+      this.size = size;
+    }
+
+    /**
+     * Gets the type of the file.
+     *
+     * @return The type of the file.
+     */
+    public int getType() {
+      return type;
+    }
+
+    /**
+     * Gets the id of the file.
+     *
+     * @return The id of the file.
+     */
+    public int getId() {
+      return id;
+    }
+
+    /**
+     * Gets the size of the file.
+     *
+     * @return The size of the file in bytes.
+     */
+    public int getSize() {
+      return size;
+    }
+
+  }
+
+  /**
+   * The journal file.
+   */
+  private final FileChannel channel;
+
+  /**
+   * The latest record of every file with a pending write, keyed by type and
+   * id and kept in the order the records were appended.
+   */
+  private final Map<Long, Record> records = new LinkedHashMap<Long, Record>();
+
+  /**
+   * The number of files of each type implied by the pending writes.
+   */
+  private final Map<Integer, Integer> fileCounts = new HashMap<Integer, Integer>();
+
+  /**
+   * The position at which the next record will be appended.
+   */
+  private long position;
+
+  /**
+   * Creates a new, empty journal.
+   *
+   * @param channel The journal file.
+   */
+  public Journal(FileChannel channel) {
+    this.channel = channel;
+  }
+
+  /**
+   * Loads every committed group from the journal file, truncating it after
+   * the last one.
+   *
+   * @throws IOException if an I/O error occurs.
+   */
+  private synchronized void recover() throws IOException {
+    long size = channel.size();
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    List<Record> group = new ArrayList<Record>();
+
+    position = 0;
+    long next = 0;
+    while (next + HEADER_SIZE <= size) {
+      header.clear();
+      FileChannelUtils.readFully(channel, header, next);
+      header.flip();
+
+      int type = header.get() & 0xFF;
+      int id = header.getInt();
+      int length = header.getInt();
+      int checksum = header.getInt();
+
+      /* a commit record makes the records before it visible */
+      if (length == COMMIT_LENGTH) {
+        if (id != group.size() || checksum(type, id, ByteBuffer.allocate(0)) != checksum)
+          break;
+
+        for (Record record : group)
+          put(record);
+        group.clear();
+
+        next += HEADER_SIZE;
+        position = next;
+        continue;
+      }
+
+      if (length < 0 || next + HEADER_SIZE + length > size)
+        break;
+
+      ByteBuffer data = ByteBuffer.allocate(length);
+      FileChannelUtils.readFully(channel, data, next + HEADER_SIZE);
+      data.flip();
+      if (checksum(type, id, data) != checksum)
+        break;
+
+      group.add(new Record(type, id, next + HEADER_SIZE, length));
+      next += HEADER_SIZE + length;
+    }
+
+    /* drop the torn group, if any, so we can append after the good ones */
+    if (position != size) {
+      channel.truncate(position);
+      channel.force(false);
+    }
+  }
+
+  /**
+   * Appends a write to the journal as a group of its own. The record is not
+   * durable until the journal is {@link #sync() synced}.
+   *
+   * @param type The type of the file.
+   * @param id   The id of the file.
+   * @param data A {@link ByteBuffer} containing the contents of the file.
+   * @throws IOException if an I/O error occurs.
+   */
+  public void append(int type, int id, ByteBuffer data) throws IOException {
+    append(Collections.singletonMap(key(type, id), data));
+  }
+
+  /**
+   * Appends a group of writes to the journal, followed by a commit record.
+   * The records only become pending writes once the whole group has been
+   * appended, and are not durable until the journal is
+   * {@link #sync() synced}.
+   *
+   * @param writes The contents of each file, keyed by {@link #key(int, int)}
+   *               and in the order they should be applied.
+   * @throws IOException if an I/O error occurs.
+   */
+  synchronized void append(Map<Long, ByteBuffer> writes) throws IOException {
+    List<Record> group = new ArrayList<Record>(writes.size());
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+    long next = position;
+    for (Map.Entry<Long, ByteBuffer> write : writes.entrySet()) {
+      int type = (int) (write.getKey() >>> 32);
+      int id = (int) (long) write.getKey();
+      ByteBuffer data = write.getValue().duplicate();
+      int length = data.remaining();
+
+      header.clear();
+      header.put((byte) type);
+      header.putInt(id);
+      header.putInt(length);
+      header.putInt(checksum(type, id, data.duplicate()));
+      header.flip();
+
+      FileChannelUtils.writeFully(channel, header, next);
+      FileChannelUtils.writeFully(channel, data, next + HEADER_SIZE);
+
+      group.add(new Record(type, id, next + HEADER_SIZE, length));
+      next += HEADER_SIZE + length;
+    }
+
+    header.clear();
+    header.put((byte) 0);
+    header.putInt(group.size());
+    header.putInt(COMMIT_LENGTH);
+    header.putInt(checksum(0, group.size(), ByteBuffer.allocate(0)));
+    header.flip();
+    FileChannelUtils.writeFully(channel, header, next);
+
+    for (Record record : group)
+      put(record);
+    position = next + HEADER_SIZE;
+  }
+
+  /**
+   * Gets the key of a file in the map of pending writes.
+   *
+   * @param type The type of the file.
+   * @param id   The id of the file.
+   * @return The key.
+   */
+  static long key(int type, int id) {
+    return ((long) type << 32) | (id & 0xFFFFFFFFL);
+  }
+
+  /**
+   * Records a pending write, replacing any earlier one for the same file.
+   *
+   * @param record The record.
+   */
+  private void put(Record record) {
+    long key = key(record.type, record.id);
+    records.remove(key);
+    records.put(key, record);
+
+    Integer count = fileCounts.get(record.type);
+    if (count == null || count <= record.id)
+      fileCounts.put(record.type, record.id + 1);
+  }
+
+  /**
+   * Gets the latest pending write of a file.
+   *
+   * @param type The type of the file.
+   * @param id   The id of the file.
+   * @return The record, or {@code null} if the file has no pending write.
+   */
+  public synchronized Record get(int type, int id) {
+    return records.get(key(type, id));
+  }
+
+  /**
+   * Gets the latest pending write of every file, in the order they were
+   * appended.
+   *
+   * @return The records.
+   */
+  public synchronized Collection<Record> getRecords() {
+    return new ArrayList<Record>(records.values());
+  }
+
+  /**
+   * Gets the number of files of the specified type implied by the pending
+   * writes, i.e. one more than the highest id written.
+   *
+   * @param type The type.
+   * @return The number of files, or {@code 0} if there are no pending writes
+   * of the type.
+   */
+  public synchronized int getFileCount(int type) {
+    Integer count = fileCounts.get(type);
+    return count == null ? 0 : count;
+  }
+
+  /**
+   * Gets the size of the journal.
+   *
+   * @return The size of the journal in bytes.
+   */
+  public synchronized long getSize() {
+    return position;
+  }
+
+  /**
+   * Reads the contents of a pending write into the specified buffer,
+   * starting at its current position.
+   *
+   * @param record The record.
+   * @param data   The buffer.
+   * @throws IOException if an I/O error occurs.
+   */
+  public void read(Record record, ByteBuffer data) throws IOException {
+    ByteBuffer slice = data.duplicate();
+    slice.limit(slice.position() + record.size);
+    FileChannelUtils.readFully(channel, slice, record.position);
+    data.position(slice.position());
+  }
+
+  /**
+   * Forces every record appended so far to disk. Only records which have
+   * been synced are guaranteed to survive a crash.
+   *
+   * @throws IOException if an I/O error occurs.
+   */
+  public void sync() throws IOException {
+    channel.force(false);
+  }
+
+  /**
+   * Discards every record, once they have all been applied to the store.
+   *
+   * @throws IOException if an I/O error occurs.
+   */
+  public synchronized void reset() throws IOException {
+    channel.truncate(0);
+    channel.force(false);
+
+    records.clear();
+    fileCounts.clear();
+    position = 0;
+  }
+
+  /**
+   * Calculates the checksum of a record.
+   *
+   * @param type The type of the file.
+   * @param id   The id of the file.
+   * @param data The contents of the file.
+   * @return The checksum.
+   */
+  private static int checksum(int type, int id, ByteBuffer data) {
+    CRC32 crc = new CRC32();
+    crc.update(type);
+    crc.update(id >> 24);
+    crc.update(id >> 16);
+    crc.update(id >> 8);
+    crc.update(id);
+    crc.update(data);
+    return (int) crc.getValue();
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+}
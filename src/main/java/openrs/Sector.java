@@ -50,6 +50,70 @@ public final class Sector {
     return new Sector(type, id, chunk, nextSector, data);
   }
 
+  /**
+   * Gets the type of file in the encoded sector at the specified position of
+   * the buffer, without decoding the whole sector.
+   *
+   * @param buf The buffer.
+   * @param pos The position of the sector within the buffer.
+   * @return The type of file in the sector.
+   */
+  public static int getType(ByteBuffer buf, int pos) {
+    return buf.get(pos + 7) & 0xFF;
+  }
+
+  /**
+   * Gets the id of the file in the encoded sector at the specified position
+   * of the buffer, without decoding the whole sector.
+   *
+   * @param buf The buffer.
+   * @param pos The position of the sector within the buffer.
+   * @return The id of the file in the sector.
+   */
+  public static int getId(ByteBuffer buf, int pos) {
+    return buf.getShort(pos) & 0xFFFF;
+  }
+
+  /**
+   * Gets the chunk of the file in the encoded sector at the specified
+   * position of the buffer, without decoding the whole sector.
+   *
+   * @param buf The buffer.
+   * @param pos The position of the sector within the buffer.
+   * @return The chunk of the file the sector contains.
+   */
+  public static int getChunk(ByteBuffer buf, int pos) {
+    return buf.getShort(pos + 2) & 0xFFFF;
+  }
+
+  /**
+   * Gets the next sector of the encoded sector at the specified position of
+   * the buffer, without decoding the whole sector.
+   *
+   * @param buf The buffer.
+   * @param pos The position of the sector within the buffer.
+   * @return The next sector.
+   */
+  public static int getNextSector(ByteBuffer buf, int pos) {
+    return ByteBufferUtils.getTriByte(buf, pos + 4);
+  }
+
+  /**
+   * Writes the header of a sector to the specified buffer.
+   *
+   * @param buf        The buffer.
+   * @param type       The type of the file.
+   * @param id         The file's id.
+   * @param chunk      The chunk of the file the sector contains.
+   * @param nextSector The sector containing the next chunk.
+   */
+  public static void putHeader(ByteBuffer buf, int type, int id, int chunk, int nextSector) {
+    buf.putShort((short) id);
+    buf.putShort((short) chunk);
+    ByteBufferUtils.putTriByte(buf, nextSector);
+    buf.put((byte) type);
+  }
+
   /**
    * The type of file this sector contains.
    */
@@ -145,10 +209,7 @@ public final class Sector {
   public ByteBuffer encode() {
     ByteBuffer buf = ByteBuffer.allocate(SIZE);
 
-    buf.putShort((short) id);
-    buf.putShort((short) chunk);
-    ByteBufferUtils.putTriByte(buf, nextSector);
-    buf.put((byte) type);
+    putHeader(buf, type, id, chunk, nextSector);
     buf.put(data);
 
     return (ByteBuffer) buf.flip();
@@ -3,7 +3,6 @@ package openrs.util;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.zip.CRC32;
-import java.util.zip.Checksum;
 
 import openrs.util.crypto.Whirlpool;
 
@@ -58,6 +57,18 @@ public final class ByteBufferUtils {
     return ((buf.get() & 0xFF) << 16) | ((buf.get() & 0xFF) << 8) | (buf.get() & 0xFF);
   }
 
+  /**
+   * Reads a 'tri-byte' from the specified position of the buffer, without
+   * changing its position.
+   *
+   * @param buf The buffer.
+   * @param pos The position.
+   * @return The value.
+   */
+  public static int getTriByte(ByteBuffer buf, int pos) {
+    return ((buf.get(pos) & 0xFF) << 16) | ((buf.get(pos + 1) & 0xFF) << 8) | (buf.get(pos + 2) & 0xFF);
+  }
+
   /**
    * Writes a 'tri-byte' to the specified buffer.
    *
@@ -71,29 +82,99 @@ public final class ByteBufferUtils {
   }
 
   /**
-   * Calculates the CRC32 checksum of the specified buffer.
+   * Writes a 'tri-byte' to the specified position of the buffer, without
+   * changing its position.
+   *
+   * @param buf   The buffer.
+   * @param pos   The position.
+   * @param value The value.
+   */
+  public static void putTriByte(ByteBuffer buf, int pos, int value) {
+    buf.put(pos, (byte) (value >> 16));
+    buf.put(pos + 1, (byte) (value >> 8));
+    buf.put(pos + 2, (byte) value);
+  }
+
+  /**
+   * The number of bytes fed to each checksum at a time by
+   * {@link #getChecksums(ByteBuffer, int, int, byte[])}, small enough for a
+   * chunk to still be in the CPU cache when the second checksum reads it.
+   */
+  private static final int CHECKSUM_CHUNK_SIZE = 8192;
+
+  /**
+   * Calculates the CRC32 checksum of the specified buffer, from its start
+   * up to its limit. The buffer's position is not changed.
    *
    * @param buffer The buffer.
    * @return The CRC32 checksum.
    */
   public static int getCrcChecksum(ByteBuffer buffer) {
-    Checksum crc = new CRC32();
-    for (int i = 0; i < buffer.limit(); i++) {
-      crc.update(buffer.get(i));
+    return getCrcChecksum(buffer, 0, buffer.limit());
+  }
+
+  /**
+   * Calculates the CRC32 checksum of a range of the specified buffer, without
+   * copying it. The buffer's position is not changed.
+   *
+   * @param buffer The buffer.
+   * @param off    The offset of the range.
+   * @param len    The length of the range.
+   * @return The CRC32 checksum.
+   */
+  public static int getCrcChecksum(ByteBuffer buffer, int off, int len) {
+    return getChecksums(buffer, off, len, null);
+  }
+
+  /**
+   * Calculates the CRC32 checksum and, optionally, the whirlpool digest of a
+   * range of the specified buffer in a single pass, without copying it. The
+   * buffer's position is not changed.
+   *
+   * @param buffer The buffer.
+   * @param off    The offset of the range.
+   * @param len    The length of the range.
+   * @param digest A 64-byte array to store the whirlpool digest in, or
+   *               {@code null} if it is not needed.
+   * @return The CRC32 checksum.
+   */
+  public static int getChecksums(ByteBuffer buffer, int off, int len, byte[] digest) {
+    CRC32 crc = new CRC32();
+    Whirlpool whirlpool = null;
+    if (digest != null) {
+      whirlpool = Whirlpool.getInstance();
+      whirlpool.NESSIEinit();
     }
+
+    ByteBuffer chunk = buffer.duplicate();
+    for (int pos = off, end = off + len; pos < end; pos += CHECKSUM_CHUNK_SIZE) {
+      int limit = Math.min(end, pos + CHECKSUM_CHUNK_SIZE);
+
+      chunk.limit(limit).position(pos);
+      crc.update(chunk);
+
+      if (whirlpool != null) {
+        chunk.position(pos);
+        whirlpool.update(chunk);
+      }
+    }
+
+    if (whirlpool != null)
+      whirlpool.NESSIEfinalize(digest);
+
     return (int) crc.getValue();
   }
 
   /**
-   * Calculates the whirlpool digest of the specified buffer.
+   * Calculates the whirlpool digest of the specified buffer, without copying
+   * it. The buffer is hashed from its position up to its limit, and its
+   * position is advanced to its limit.
    *
    * @param buf The buffer.
    * @return The 64-byte whirlpool digest.
    */
   public static byte[] getWhirlpoolDigest(ByteBuffer buf) {
-    byte[] bytes = new byte[buf.limit()];
-    buf.get(bytes);
-    return Whirlpool.whirlpool(bytes, 0, bytes.length);
+    return Whirlpool.whirlpool(buf);
   }
 
   /**
@@ -34,6 +34,41 @@ public final class FileChannelUtils {
     }
   }
 
+  /**
+   * Reads from the channel into the buffer until either the buffer is full or
+   * the end of the file is reached.
+   *
+   * @param channel The channel.
+   * @param buffer  The buffer.
+   * @param ptr     The initial position in the channel.
+   * @return The number of bytes read.
+   * @throws IOException if an I/O error occurs.
+   */
+  public static int readAvailable(FileChannel channel, ByteBuffer buffer, long ptr) throws IOException {
+    int total = 0;
+    while (buffer.remaining() > 0) {
+      int read = channel.read(buffer, ptr + total);
+      if (read == -1)
+        break;
+
+      total += read;
+    }
+    return total;
+  }
+
+  /**
+   * Writes the whole of the buffer to the channel.
+   *
+   * @param channel The channel.
+   * @param buffer  The buffer.
+   * @param ptr     The initial position in the channel.
+   * @throws IOException if an I/O error occurs.
+   */
+  public static void writeFully(FileChannel channel, ByteBuffer buffer, long ptr) throws IOException {
+    while (buffer.remaining() > 0)
+      ptr += channel.write(buffer, ptr);
+  }
+
   /**
    * Default private constructor to prevent instantiation.
    */
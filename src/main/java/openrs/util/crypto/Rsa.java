@@ -27,6 +27,17 @@ public final class Rsa {
 		return ByteBuffer.wrap(out.toByteArray());
 	}
 
+	/**
+	 * Decrypts/signs the specified buffer with the private key, using the
+	 * Chinese Remainder Theorem if the key carries its parameters.
+	 * @param buffer The input buffer.
+	 * @param key The private key.
+	 * @return The output buffer.
+	 */
+	public static ByteBuffer crypt(ByteBuffer buffer, RsaPrivateKey key) {
+		return key.crypt(buffer);
+	}
+
 	/**
 	 * Default private constructor to prevent instantiation.
 	 */
@@ -0,0 +1,224 @@
+package openrs.util.crypto;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+/**
+ * An RSA private key. If the prime factors of the modulus are known, the key
+ * also carries the Chinese Remainder Theorem parameters and private key
+ * operations are done as two exponentiations modulo the primes, which is
+ * several times faster than a single exponentiation modulo the modulus.
+ */
+public final class RsaPrivateKey {
+
+  /**
+   * The number of bases to try when recovering the primes of a modulus.
+   */
+  private static final int RECOVERY_ATTEMPTS = 100;
+
+  /**
+   * Creates a private key from the modulus and both exponents, recovering
+   * the prime factors of the modulus so that the key can use the Chinese
+   * Remainder Theorem. If the primes cannot be recovered, e.g. because the
+   * public exponent does not belong to the private exponent, a key without
+   * the CRT parameters is returned.
+   *
+   * @param modulus         The modulus.
+   * @param publicExponent  The public exponent.
+   * @param privateExponent The private exponent.
+   * @return The private key.
+   */
+  public static RsaPrivateKey create(BigInteger modulus, BigInteger publicExponent, BigInteger privateExponent) {
+    BigInteger p = recoverPrime(modulus, publicExponent, privateExponent);
+    if (p == null)
+      return new RsaPrivateKey(modulus, privateExponent);
+
+    return new RsaPrivateKey(modulus, privateExponent, p, modulus.divide(p));
+  }
+
+  /**
+   * Recovers a prime factor of the modulus from the exponents. As
+   * {@code d * e - 1} is a multiple of {@code lcm(p - 1, q - 1)}, repeatedly
+   * halving it and raising a base to that power eventually finds a non
+   * trivial square root of one modulo {@code n}, which shares a factor with
+   * {@code n}.
+   *
+   * @param n The modulus.
+   * @param e The public exponent.
+   * @param d The private exponent.
+   * @return A prime factor of the modulus, or {@code null} if one could not
+   * be found.
+   */
+  private static BigInteger recoverPrime(BigInteger n, BigInteger e, BigInteger d) {
+    BigInteger k = d.multiply(e).subtract(BigInteger.ONE);
+    if (k.signum() <= 0 || k.testBit(0))
+      return null;
+
+    int s = k.getLowestSetBit();
+    BigInteger t = k.shiftRight(s);
+    BigInteger minusOne = n.subtract(BigInteger.ONE);
+
+    BigInteger g = BigInteger.valueOf(2);
+    for (int attempt = 0; attempt < RECOVERY_ATTEMPTS; attempt++, g = g.add(BigInteger.ONE)) {
+      BigInteger x = g.modPow(t, n);
+      for (int i = 0; i < s; i++) {
+        if (x.equals(BigInteger.ONE) || x.equals(minusOne))
+          break;
+
+        BigInteger y = x.multiply(x).mod(n);
+        if (y.equals(BigInteger.ONE)) {
+          BigInteger p = x.subtract(BigInteger.ONE).gcd(n);
+          if (p.compareTo(BigInteger.ONE) > 0 && p.compareTo(n) < 0 && n.mod(p).signum() == 0)
+            return p;
+          break;
+        }
+
+        x = y;
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * The modulus.
+   */
+  private final BigInteger modulus;
+
+  /**
+   * The private exponent.
+   */
+  private final BigInteger exponent;
+
+  /**
+   * The first prime factor of the modulus, or {@code null} if the CRT
+   * parameters are not known.
+   */
+  private final BigInteger p;
+
+  /**
+   * The second prime factor of the modulus.
+   */
+  private final BigInteger q;
+
+  /**
+   * The private exponent modulo {@code p - 1}.
+   */
+  private final BigInteger dP;
+
+  /**
+   * The private exponent modulo {@code q - 1}.
+   */
+  private final BigInteger dQ;
+
+  /**
+   * The inverse of {@code q} modulo {@code p}.
+   */
+  private final BigInteger qInv;
+
+  /**
+   * Creates a new private key without the CRT parameters.
+   *
+   * @param modulus  The modulus.
+   * @param exponent The private exponent.
+   */
+  public RsaPrivateKey(BigInteger modulus, BigInteger exponent) {
+    this.modulus = modulus;
+    this.exponent = exponent;
+    this.p = null;
+    this.q = null;
+    this.dP = null;
+    this.dQ = null;
+    this.qInv = null;
+  }
+
+  /**
+   * Creates a new private key with the CRT parameters derived from the
+   * prime factors of the modulus.
+   *
+   * @param modulus  The modulus.
+   * @param exponent The private exponent.
+   * @param p        The first prime factor of the modulus.
+   * @param q        The second prime factor of the modulus.
+   * @throws IllegalArgumentException if {@code p * q} is not the modulus.
+   */
+  public RsaPrivateKey(BigInteger modulus, BigInteger exponent, BigInteger p, BigInteger q) {
+    if (!p.multiply(q).equals(modulus))
+      throw new IllegalArgumentException("p * q != modulus");
+
+    this.modulus = modulus;
+    this.exponent = exponent;
+    this.p = p;
+    this.q = q;
+    this.dP = exponent.mod(p.subtract(BigInteger.ONE));
+    this.dQ = exponent.mod(q.subtract(BigInteger.ONE));
+    this.qInv = q.modInverse(p);
+  }
+
+  /**
+   * Gets the modulus.
+   *
+   * @return The modulus.
+   */
+  public BigInteger getModulus() {
+    return modulus;
+  }
+
+  /**
+   * Gets the private exponent.
+   *
+   * @return The private exponent.
+   */
+  public BigInteger getExponent() {
+    return exponent;
+  }
+
+  /**
+   * Checks if this key carries the CRT parameters.
+   *
+   * @return {@code true} if so, {@code false} if not.
+   */
+  public boolean isCrt() {
+    return p != null;
+  }
+
+  /**
+   * Raises the value to the private exponent modulo the modulus.
+   *
+   * @param in The value.
+   * @return The result, which is always in the range {@code [0, modulus)}.
+   */
+  public BigInteger crypt(BigInteger in) {
+    if (p == null)
+      return in.modPow(exponent, modulus);
+
+    BigInteger m1 = in.modPow(dP, p);
+    BigInteger m2 = in.modPow(dQ, q);
+    BigInteger h = qInv.multiply(m1.subtract(m2)).mod(p);
+    return m2.add(h.multiply(q));
+  }
+
+  /**
+   * Decrypts (or signs) the remaining contents of the specified buffer.
+   *
+   * @param buffer The input buffer.
+   * @return The output buffer.
+   */
+  public ByteBuffer crypt(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+
+    return ByteBuffer.wrap(crypt(bytes));
+  }
+
+  /**
+   * Decrypts (or signs) the specified bytes.
+   *
+   * @param bytes The input bytes.
+   * @return The output bytes.
+   */
+  public byte[] crypt(byte[] bytes) {
+    return crypt(new BigInteger(bytes)).toByteArray();
+  }
+
+}
@@ -1,5 +1,7 @@
 package openrs.util.crypto;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
 
 /**
@@ -147,19 +149,44 @@ public class Whirlpool {
     }
   }
 
-  public static byte[] whirlpool(byte[] data, int off, int len) {
-    byte source[];
-    if (off <= 0) {
-      source = data;
-    } else {
-      source = new byte[len];
-      for (int i = 0; i < len; i++)
-        source[i] = data[off + i];
+  /**
+   * The Whirlpool instance reused by each thread for the static digest
+   * methods.
+   */
+  private static final ThreadLocal<Whirlpool> LOCAL = new ThreadLocal<Whirlpool>() {
+    @Override
+    protected Whirlpool initialValue() {
+      return new Whirlpool();
     }
-    Whirlpool whirlpool = new Whirlpool();
+  };
+
+  /**
+   * Gets the Whirlpool instance of the current thread. The caller must
+   * initialise it with {@link #NESSIEinit()} before use, and must not hold
+   * on to it across calls to the static digest methods.
+   *
+   * @return The instance.
+   */
+  public static Whirlpool getInstance() {
+    return LOCAL.get();
+  }
+
+  public static byte[] whirlpool(byte[] data, int off, int len) {
+    return whirlpool(ByteBuffer.wrap(data, off, len));
+  }
+
+  /**
+   * Calculates the digest of the remaining bytes of the buffer, which may be
+   * a heap or direct buffer. The buffer's position is advanced to its limit.
+   *
+   * @param data The buffer.
+   * @return The 64-byte digest.
+   */
+  public static byte[] whirlpool(ByteBuffer data) {
+    Whirlpool whirlpool = LOCAL.get();
     whirlpool.NESSIEinit();
-    whirlpool.NESSIEadd(source, len * 8);
-    byte digest[] = new byte[64];
+    whirlpool.update(data);
+    byte digest[] = new byte[DIGESTBYTES];
     whirlpool.NESSIEfinalize(digest);
     return digest;
   }
@@ -214,6 +241,27 @@ public class Whirlpool {
               (((long) buffer[j + 6] & 0xffL) << 8) ^
               (((long) buffer[j + 7] & 0xffL));
     }
+    processBlock();
+  }
+
+  /**
+   * The core Whirlpool transform, applied to a block read straight from a
+   * big-endian buffer.
+   *
+   * @param source The buffer.
+   * @param pos    The position of the block within the buffer.
+   */
+  protected void processBuffer(ByteBuffer source, int pos) {
+    for (int i = 0; i < 8; i++) {
+      block[i] = source.getLong(pos + i * 8);
+    }
+    processBlock();
+  }
+
+  /**
+   * Applies the Whirlpool transform to the current block.
+   */
+  private void processBlock() {
         /*
          * compute and apply K^0 to the cipher state:
          */
@@ -353,6 +401,67 @@ public class Whirlpool {
     }
   }
 
+  /**
+   * Delivers the remaining bytes of a heap or direct buffer to the hashing
+   * algorithm, advancing its position to its limit. Whole blocks are read
+   * straight from the buffer without being copied.
+   * <p>
+   * The data added so far must be a whole number of bytes.
+   *
+   * @param source plaintext data to hash.
+   */
+  public void update(ByteBuffer source) {
+    if ((bufferBits & 7) != 0) {
+      throw new IllegalStateException("partial byte pending");
+    }
+
+    int len = source.remaining();
+    // tally the length of the added data:
+    long value = (long) len << 3;
+    for (int i = 31, carry = 0; i >= 0; i--) {
+      carry += (bitLength[i] & 0xff) + ((int) value & 0xff);
+      bitLength[i] = (byte) carry;
+      carry >>>= 8;
+      value >>>= 8;
+    }
+
+    ByteBuffer data = source.duplicate().order(ByteOrder.BIG_ENDIAN);
+    int pos = data.position();
+    int end = data.limit();
+
+    // top up a partially filled buffer first:
+    if (bufferPos > 0) {
+      int n = Math.min(64 - bufferPos, end - pos);
+      data.position(pos);
+      data.get(buffer, bufferPos, n);
+      pos += n;
+      bufferPos += n;
+      if (bufferPos == 64) {
+        processBuffer();
+        bufferPos = 0;
+      }
+    }
+
+    // process whole blocks in place:
+    if (bufferPos == 0) {
+      for (; end - pos >= 64; pos += 64) {
+        processBuffer(data, pos);
+      }
+    }
+
+    // keep the tail for later:
+    int n = end - pos;
+    if (n > 0) {
+      data.position(pos);
+      data.get(buffer, bufferPos, n);
+      bufferPos += n;
+    }
+
+    bufferBits = bufferPos << 3;
+    buffer[bufferPos] = 0; // NESSIEadd and NESSIEfinalize expect buffer[bufferPos] to be clean.
+    source.position(end);
+  }
+
   /**
    * Get the hash value from the hashing state.
    * <p>